@@ -0,0 +1,47 @@
+package covid;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ Partitions of a backfill which have been uploaded, one line per partition (pipeline,from,to), appended as each
+ one completes in full. A backfill started again over the same range skips them, delete the file to redo everything.
+ */
+public class BackfillProgress {
+
+    private static final Logger log = LoggerFactory.getLogger(BackfillProgress.class);
+
+    private final File file;
+
+    private final Set<String> done = new HashSet<>();
+
+    public BackfillProgress(String fileName) throws IOException {
+        this.file = new File(fileName);
+        if (file.exists()) {
+            done.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+            log.info("{} backfill partitions already done", done.size());
+        }
+    }
+
+    private static String key(String pipeline, Object from, Object to) {
+        return pipeline + "," + from + "," + to;
+    }
+
+    public synchronized boolean isDone(String pipeline, Object from, Object to) {
+        return done.contains(key(pipeline, from, to));
+    }
+
+    public synchronized void markDone(String pipeline, Object from, Object to) throws IOException {
+        String key = key(pipeline, from, to);
+        if (!done.add(key)) return;
+        Files.write(file.toPath(), (key + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,304 @@
+package covid;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.opencsv.CSVWriter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ Sends transaction bundles to the FHIR server.
+
+ Transient failures (connection problems, 429 and 5xx gateway errors) are retried with jittered exponential backoff.
+ Any other 4xx failure is treated as caused by the bundle content, so the bundle is split in half and each half sent
+ on its own until the bad entries are isolated. Those entries are written to the quarantine file and the run carries on.
+ Anything else (retries exhausted, 401, other 5xx) stops the upload.
+
+ Batch bundles are checked entry by entry, entries failing with a transient status are resent on their own with
+ the same backoff and any other failed entry is quarantined.
+
+ With preferMinimal set the server is asked (Prefer: return=minimal) to leave the resources out of the transaction
+ response, so it only carries each entry's status and location.
+ */
+public class BundleUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(BundleUploader.class);
+
+    private static final String PREFER_MINIMAL = Constants.HEADER_PREFER_RETURN + "=" + Constants.HEADER_PREFER_RETURN_MINIMAL;
+
+    public interface IResponseHandler {
+        void accept(Bundle request, Bundle response) throws Exception;
+    }
+
+    private final IGenericClient client;
+
+    private final FhirContext ctxFHIR;
+
+    private final int maxAttempts;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    private final File quarantineFile;
+
+    private TokenProvider tokenProvider;
+
+    private boolean preferMinimal = false;
+
+    private int quarantined = 0;
+
+    public BundleUploader(IGenericClient client, FhirContext ctxFHIR, int maxAttempts, long initialBackoff, long maxBackoff, String quarantineFile) {
+        this.client = client;
+        this.ctxFHIR = ctxFHIR;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.quarantineFile = new File(quarantineFile);
+    }
+
+    public void setTokenProvider(TokenProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
+    public void setPreferMinimal(boolean preferMinimal) {
+        this.preferMinimal = preferMinimal;
+    }
+
+    public int getQuarantined() {
+        return quarantined;
+    }
+
+    public void send(Bundle bundle, IResponseHandler handler) throws Exception {
+        send(bundle, null, handler);
+    }
+
+    /*
+     encoded is the bundle already serialised (JSON), sent as it is so a bundle going to several servers is only
+     encoded once. Halves of a split bundle are encoded again as they are new bundles.
+     */
+    public void send(Bundle bundle, String encoded, IResponseHandler handler) throws Exception {
+        send(bundle, encoded, handler, 1);
+    }
+
+    private void send(Bundle bundle, String encoded, IResponseHandler handler, int attempt) throws Exception {
+        if (bundle.getEntry().isEmpty()) return;
+        Bundle resp;
+        try {
+            resp = sendWithRetry(bundle, encoded);
+        } catch (BaseServerResponseException ex) {
+            // Retries exhausted, still unauthorised or the server unreachable, the problem isn't the content so
+            // splitting won't help
+            if (!isContentError(ex)) throw ex;
+            if (bundle.getEntry().size() == 1) {
+                quarantine(bundle.getEntryFirstRep(), ex);
+                return;
+            }
+            log.warn("Bundle of {} entries rejected ({} {}), splitting", bundle.getEntry().size(), ex.getStatusCode(), ex.getMessage());
+            int mid = bundle.getEntry().size() / 2;
+            send(split(bundle, 0, mid), null, handler, attempt);
+            send(split(bundle, mid, bundle.getEntry().size()), null, handler, attempt);
+            return;
+        }
+        if (bundle.getType() == Bundle.BundleType.BATCH) {
+            checkBatch(bundle, resp, attempt);
+        }
+        if (handler != null) handler.accept(bundle, resp);
+    }
+
+    /*
+     Entries of a batch succeed or fail on their own. Failed entries are resent or quarantined, resent entries have
+     their response entry replaced so the response still lines up with the request.
+     */
+    private void checkBatch(Bundle bundle, Bundle resp, int attempt) throws Exception {
+        List<Integer> retry = new ArrayList<>();
+        int lastStatus = 0;
+        String lastMessage = null;
+        for (int f = 0; f < bundle.getEntry().size() && f < resp.getEntry().size(); f++) {
+            Bundle.BundleEntryResponseComponent response = resp.getEntry().get(f).getResponse();
+            int status = getStatus(response);
+            if (status < 400) continue;
+            String message = getMessage(response);
+            if (isTransient(status) && attempt < maxAttempts) {
+                lastStatus = status;
+                lastMessage = message;
+                retry.add(f);
+            } else {
+                quarantine(bundle.getEntry().get(f), status, message);
+            }
+        }
+        if (retry.isEmpty()) return;
+
+        backoff(attempt, retry.size() + " batch entries failed, last " + lastStatus + " " + lastMessage);
+        Bundle retryBundle = new Bundle();
+        retryBundle.getIdentifier().setSystem(bundle.getIdentifier().getSystem())
+                .setValue(UUID.randomUUID().toString());
+        retryBundle.setType(Bundle.BundleType.BATCH);
+        // Entries of the retry bundle (or of its halves if it is split) are the original entry objects
+        Map<Bundle.BundleEntryComponent, Integer> positions = new IdentityHashMap<>();
+        for (int f : retry) {
+            retryBundle.addEntry(bundle.getEntry().get(f));
+            positions.put(bundle.getEntry().get(f), f);
+        }
+        send(retryBundle, null, (request, retryResp) -> {
+            for (int f = 0; f < request.getEntry().size() && f < retryResp.getEntry().size(); f++) {
+                resp.getEntry().set(positions.get(request.getEntry().get(f)), retryResp.getEntry().get(f));
+            }
+        }, attempt + 1);
+    }
+
+    private int getStatus(Bundle.BundleEntryResponseComponent response) {
+        // Status is the code followed by optional text, e.g. "201 Created"
+        String status = response.getStatus();
+        if (status == null || status.length() < 3) return 0;
+        try {
+            return Integer.parseInt(status.substring(0, 3));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private String getMessage(Bundle.BundleEntryResponseComponent response) {
+        if (response.getOutcome() instanceof OperationOutcome) {
+            OperationOutcome outcome = (OperationOutcome) response.getOutcome();
+            if (outcome.hasIssue()) return outcome.getIssueFirstRep().getDiagnostics();
+        }
+        return response.getStatus();
+    }
+
+    private Bundle sendWithRetry(Bundle bundle, String encoded) throws InterruptedException, IOException {
+        int attempt = 0;
+        boolean reauthenticated = false;
+        while (true) {
+            attempt++;
+            String token = tokenProvider != null ? tokenProvider.getToken() : null;
+            try {
+                if (encoded != null) {
+                    ITransactionTyped<String> transaction = client.transaction().withBundle(encoded);
+                    if (preferMinimal) transaction.withAdditionalHeader(Constants.HEADER_PREFER, PREFER_MINIMAL);
+                    String response = transaction.execute();
+                    return EncodingEnum.detectEncoding(response).newParser(ctxFHIR).parseResource(Bundle.class, response);
+                }
+                ITransactionTyped<Bundle> transaction = client.transaction().withBundle(bundle);
+                if (preferMinimal) transaction.withAdditionalHeader(Constants.HEADER_PREFER, PREFER_MINIMAL);
+                return transaction.execute();
+            } catch (AuthenticationException ex) {
+                // Token expired or revoked under us, get a new one and try once more
+                if (tokenProvider == null || reauthenticated) throw ex;
+                log.warn("Transaction returned 401, refreshing token");
+                tokenProvider.refreshIfCurrent(token);
+                reauthenticated = true;
+                attempt--;
+            } catch (FhirClientConnectionException ex) {
+                if (attempt >= maxAttempts) throw ex;
+                backoff(attempt, ex);
+            } catch (BaseServerResponseException ex) {
+                if (!isTransient(ex) || attempt >= maxAttempts) throw ex;
+                backoff(attempt, ex);
+            }
+        }
+    }
+
+    /*
+     Rejected because of what the bundle holds (4xx other than 401 and the transient ones), as opposed to the server
+     being unreachable (connection failures have status 0), unavailable or refusing the credentials.
+     */
+    private boolean isContentError(BaseServerResponseException ex) {
+        if (ex instanceof FhirClientConnectionException || ex instanceof AuthenticationException) return false;
+        int status = ex.getStatusCode();
+        return status >= 400 && status < 500 && !isTransient(status);
+    }
+
+    private boolean isTransient(BaseServerResponseException ex) {
+        return isTransient(ex.getStatusCode());
+    }
+
+    private boolean isTransient(int status) {
+        switch (status) {
+            case 408:
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void backoff(int attempt, RuntimeException ex) throws InterruptedException {
+        backoff(attempt, ex.getMessage());
+    }
+
+    private void backoff(int attempt, String reason) throws InterruptedException {
+        long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        log.warn("Transaction attempt {} failed ({}), retrying in {} ms", attempt, reason, delay);
+        Thread.sleep(delay);
+    }
+
+    private Bundle split(Bundle bundle, int from, int to) {
+        Bundle sub = new Bundle();
+        sub.getIdentifier().setSystem(bundle.getIdentifier().getSystem())
+                .setValue(UUID.randomUUID().toString());
+        sub.setType(bundle.getType());
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry().subList(from, to);
+        for (Bundle.BundleEntryComponent entry : entries) {
+            sub.addEntry(entry);
+        }
+        return sub;
+    }
+
+    private void quarantine(Bundle.BundleEntryComponent entry, BaseServerResponseException ex) throws IOException {
+        quarantine(entry, ex.getStatusCode(), ex.getMessage());
+    }
+
+    private synchronized void quarantine(Bundle.BundleEntryComponent entry, int status, String message) throws IOException {
+        Resource resource = entry.getResource();
+        String identifier = "";
+        if (resource instanceof MeasureReport) {
+            identifier = ((MeasureReport) resource).getIdentifierFirstRep().getValue();
+        } else if (resource instanceof Location) {
+            identifier = ((Location) resource).getIdentifierFirstRep().getValue();
+        }
+        log.error("Quarantined {} {} - {} {}", entry.getRequest().getUrl(), identifier, status, message);
+
+        boolean writeHeader = !quarantineFile.exists();
+        CSVWriter writer = new CSVWriter(new FileWriter(quarantineFile, true));
+        if (writeHeader) {
+            String[] header = { "DATE", "REQUEST", "IDENTIFIER", "STATUS", "MESSAGE", "RESOURCE" };
+            writer.writeNext(header);
+        }
+        String[] data = { new Date().toString(),
+                entry.getRequest().getMethod().toCode() + " " + entry.getRequest().getUrl(),
+                identifier,
+                String.valueOf(status),
+                message,
+                resource == null ? "" : ctxFHIR.newJsonParser().encodeResourceToString(resource) };
+        writer.writeNext(data);
+        writer.close();
+        quarantined++;
+    }
+}
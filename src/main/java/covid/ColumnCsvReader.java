@@ -0,0 +1,251 @@
+package covid;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ CSV reader working directly on the bytes of the file.
+
+ Only the columns given to the constructor are tracked, next() records where each of them starts and ends in the
+ current row and the accessors read from there, so no String[] is built per row. Codes (ONS codes, dates and other
+ values that repeat across rows) are returned from a small cache keyed on the bytes, numbers are parsed in place.
+
+ Handles quoted fields ("" inside quotes), CRLF line ends, blank lines and the UTF-8 byte order mark the ONS files
+ start with.
+ Text is UTF-8, codes are expected to be ASCII and any other code falls back to a new String.
+ */
+public class ColumnCsvReader {
+
+    private static final int CACHE_SIZE = 4096;
+
+    private final byte[] data;
+
+    private final int end;
+
+    private int pos;
+
+    // column number -> slot in starts/ends, or -1 if not tracked
+    private final int[] slots;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final boolean[] escaped;
+
+    private int columnCount = 0;
+
+    private final String[] codes = new String[CACHE_SIZE];
+
+    public ColumnCsvReader(byte[] data, int from, int to, int... columns) {
+        this.data = data;
+        this.end = to;
+        this.pos = from;
+        if (to - from >= 3 && (data[from] & 0xFF) == 0xEF && (data[from + 1] & 0xFF) == 0xBB && (data[from + 2] & 0xFF) == 0xBF) {
+            pos += 3;
+        }
+        int max = 0;
+        for (int column : columns) max = Math.max(max, column + 1);
+        slots = new int[max];
+        Arrays.fill(slots, -1);
+        for (int f = 0; f < columns.length; f++) slots[columns[f]] = f;
+        starts = new int[columns.length];
+        ends = new int[columns.length];
+        escaped = new boolean[columns.length];
+    }
+
+    public static ColumnCsvReader of(InputStream is, int... columns) throws IOException {
+        try {
+            byte[] data = IOUtils.toByteArray(is);
+            return new ColumnCsvReader(data, 0, data.length, columns);
+        } finally {
+            is.close();
+        }
+    }
+
+    public void skipLine() {
+        next();
+    }
+
+    /*
+     Moves to the next row, false at the end of the data. Blank lines are skipped.
+     */
+    public boolean next() {
+        while (pos < end && (data[pos] == '\n' || data[pos] == '\r')) pos++;
+        if (pos >= end) return false;
+        Arrays.fill(starts, -1);
+        Arrays.fill(ends, -1);
+        int column = 0;
+        while (true) {
+            int start = pos;
+            int stop;
+            boolean quotes = false;
+            if (data[pos] == '"') {
+                start = ++pos;
+                while (pos < end) {
+                    if (data[pos] == '"') {
+                        if (pos + 1 < end && data[pos + 1] == '"') {
+                            quotes = true;
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                stop = pos;
+                if (pos < end) pos++;
+                while (pos < end && data[pos] != ',' && data[pos] != '\n' && data[pos] != '\r') pos++;
+            } else {
+                while (pos < end && data[pos] != ',' && data[pos] != '\n' && data[pos] != '\r') pos++;
+                stop = pos;
+            }
+            if (column < slots.length && slots[column] >= 0) {
+                starts[slots[column]] = start;
+                ends[slots[column]] = stop;
+                escaped[slots[column]] = quotes;
+            }
+            column++;
+            if (pos >= end) break;
+            byte b = data[pos++];
+            if (b == ',') {
+                if (pos >= end) {
+                    // trailing delimiter at the end of the data, still an empty last column
+                    column++;
+                    break;
+                }
+                continue;
+            }
+            if (b == '\r' && pos < end && data[pos] == '\n') pos++;
+            break;
+        }
+        columnCount = column;
+        return true;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    private int slot(int column) {
+        if (column >= slots.length || slots[column] < 0) {
+            throw new IllegalArgumentException("Column " + column + " was not selected");
+        }
+        return slots[column];
+    }
+
+    public boolean isEmpty(int column) {
+        int slot = slot(column);
+        return starts[slot] < 0 || starts[slot] == ends[slot];
+    }
+
+    public String getString(int column) {
+        int slot = slot(column);
+        if (starts[slot] < 0) return "";
+        String value = new String(data, starts[slot], ends[slot] - starts[slot], StandardCharsets.UTF_8);
+        return escaped[slot] ? value.replace("\"\"", "\"") : value;
+    }
+
+    /*
+     Same as getString, but repeated values come back as the same String instance without a new allocation.
+     */
+    public String getCode(int column) {
+        int slot = slot(column);
+        if (starts[slot] < 0) return "";
+        int start = starts[slot];
+        int length = ends[slot] - start;
+        if (escaped[slot]) return getString(column);
+        int hash = 0;
+        for (int f = start; f < start + length; f++) {
+            if (data[f] < 0) return getString(column);
+            hash = 31 * hash + data[f];
+        }
+        int idx = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        String cached = codes[idx];
+        if (cached != null && matches(cached, start, length)) return cached;
+        String value = new String(data, start, length, StandardCharsets.US_ASCII);
+        codes[idx] = value;
+        return value;
+    }
+
+    private boolean matches(String value, int start, int length) {
+        if (value.length() != length) return false;
+        for (int f = 0; f < length; f++) {
+            if (value.charAt(f) != data[start + f]) return false;
+        }
+        return true;
+    }
+
+    public long getLong(int column) {
+        int slot = slot(column);
+        int f = starts[slot];
+        int stop = ends[slot];
+        while (f < stop && data[f] == ' ') f++;
+        while (stop > f && data[stop - 1] == ' ') stop--;
+        if (f < 0 || f == stop) throw new NumberFormatException("Empty column " + column);
+        boolean negative = data[f] == '-';
+        if (negative || data[f] == '+') f++;
+        if (f == stop) throw new NumberFormatException(getString(column));
+        long value = 0;
+        for (; f < stop; f++) {
+            int digit = data[f] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException(getString(column));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public int getInt(int column) {
+        long value = getLong(column);
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) throw new NumberFormatException(getString(column));
+        return (int) value;
+    }
+
+    /*
+     Whole numbers are read in place, anything else goes through BigDecimal's own parser.
+     */
+    public BigDecimal getDecimal(int column) {
+        int slot = slot(column);
+        boolean whole = starts[slot] >= 0 && ends[slot] > starts[slot];
+        for (int f = Math.max(starts[slot], 0); whole && f < ends[slot]; f++) {
+            if (data[f] < '0' || data[f] > '9') whole = false;
+        }
+        if (whole && ends[slot] - starts[slot] < 19) return BigDecimal.valueOf(getLong(column));
+        return new BigDecimal(getString(column).trim());
+    }
+
+    /*
+     ASCII comparison ignoring case and surrounding spaces.
+     */
+    public boolean equalsIgnoreCase(int column, String value) {
+        int slot = slot(column);
+        int f = starts[slot];
+        int stop = ends[slot];
+        if (f < 0) return value.isEmpty();
+        while (f < stop && data[f] == ' ') f++;
+        while (stop > f && data[stop - 1] == ' ') stop--;
+        if (stop - f != value.length()) return false;
+        for (int i = 0; i < value.length(); i++, f++) {
+            if (Character.toLowerCase((char) data[f]) != Character.toLowerCase(value.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    public boolean contains(int column, String value) {
+        int slot = slot(column);
+        int start = starts[slot];
+        if (start < 0) return value.isEmpty();
+        int last = ends[slot] - value.length();
+        for (int f = start; f <= last; f++) {
+            int i = 0;
+            while (i < value.length() && data[f + i] == value.charAt(i)) i++;
+            if (i == value.length()) return true;
+        }
+        return false;
+    }
+}
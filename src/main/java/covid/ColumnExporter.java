@@ -0,0 +1,279 @@
+package covid;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.*;
+
+/*
+ Columnar export of the computed series, one row per location and day with a column per group code.
+
+ Reports are added as they are uploaded and held per partition (measure and month). Once more than maxRows rows are
+ held the partitions added to least recently are written out and dropped, so a backfill streams through in bounded
+ memory; flush() writes the rest. Reports come location by location, each over all its days, so a month can't be
+ told complete from the order they arrive in. A partition is a directory <measure>/<yyyy-MM> holding
+   schema.csv      row count, then name, type and file of each column
+   location.dict   ONS codes, one per line, the line number is the value in location.i32
+   location.i32    dictionary encoded location
+   date.i32        epoch day
+   <code>.f64      value of the group code, NaN where the report didn't have it
+ Columns are plain little endian arrays, so they can be read with numpy.fromfile or mapped into an Arrow vector
+ without parsing. A partition written earlier is read back first, later values for a row replace it.
+ A partition is written to <yyyy-MM>.tmp and swapped in by renaming, the previous copy is kept as <yyyy-MM>.old
+ until then, so a crash leaves either the old or the new partition whole.
+ */
+public class ColumnExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(ColumnExporter.class);
+
+    private class Partition {
+        final File directory;
+        final List<String> dictionary = new ArrayList<>();
+        final Map<String, Integer> dictionaryIndex = new HashMap<>();
+        // location id << 32 | epoch day -> row
+        final Map<Long, Integer> rowIndex = new HashMap<>();
+        final LinkedHashMap<String, double[]> columns = new LinkedHashMap<>();
+        int[] location = new int[256];
+        int[] date = new int[256];
+        int rows = 0;
+
+        Partition(File directory) {
+            this.directory = directory;
+        }
+
+        int row(String code, int day) {
+            Integer id = dictionaryIndex.get(code);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.add(code);
+                dictionaryIndex.put(code, id);
+            }
+            long key = ((long) id << 32) | (day & 0xFFFFFFFFL);
+            Integer row = rowIndex.get(key);
+            if (row != null) return row;
+            if (rows == location.length) {
+                location = Arrays.copyOf(location, rows * 2);
+                date = Arrays.copyOf(date, rows * 2);
+                for (Map.Entry<String, double[]> column : columns.entrySet()) {
+                    column.setValue(grow(column.getValue(), rows * 2));
+                }
+            }
+            location[rows] = id;
+            date[rows] = day;
+            rowIndex.put(key, rows);
+            return rows++;
+        }
+
+        void set(String code, int row, double value) {
+            double[] column = columns.get(code);
+            if (column == null) {
+                column = grow(new double[0], location.length);
+                columns.put(code, column);
+            }
+            column[row] = value;
+        }
+    }
+
+    private final File directory;
+
+    // Access ordered, the least recently added to first
+    private final LinkedHashMap<String, Partition> partitions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int maxRows;
+
+    private int heldRows = 0;
+
+    public ColumnExporter(File directory, int maxRows) throws IOException {
+        this.directory = directory;
+        this.maxRows = maxRows;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+    }
+
+    private static double[] grow(double[] values, int size) {
+        double[] grown = Arrays.copyOf(values, size);
+        Arrays.fill(grown, values.length, size, Double.NaN);
+        return grown;
+    }
+
+    public synchronized void add(String measure, MeasureReport report) throws IOException {
+        LocalDate date = report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        Partition partition = partition(measure, YearMonth.from(date));
+        int before = partition.rows;
+        int row = partition.row(report.getSubject().getIdentifier().getValue(), (int) date.toEpochDay());
+        heldRows += partition.rows - before;
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            if (group.hasMeasureScore() && group.getMeasureScore().hasValue()) {
+                partition.set(group.getCode().getCodingFirstRep().getCode(), row,
+                        group.getMeasureScore().getValue().doubleValue());
+            }
+        }
+        if (heldRows > maxRows) evict(partition);
+    }
+
+    /*
+     Writes out and drops the least recently added to partitions, other than current, until within maxRows.
+     */
+    private void evict(Partition current) throws IOException {
+        Iterator<Partition> it = partitions.values().iterator();
+        int written = 0;
+        while (heldRows > maxRows && it.hasNext()) {
+            Partition partition = it.next();
+            if (partition == current) continue;
+            write(partition);
+            heldRows -= partition.rows;
+            it.remove();
+            written++;
+        }
+        log.debug("Exported {} partitions to stay within {} rows", written, maxRows);
+    }
+
+    private Partition partition(String measure, YearMonth month) throws IOException {
+        String name = measure + "/" + month;
+        Partition partition = partitions.get(name);
+        if (partition == null) {
+            partition = new Partition(new File(new File(directory, measure), month.toString()));
+            File old = sibling(partition.directory, ".old");
+            if (!partition.directory.exists() && old.exists()) {
+                // Stopped between the renames, the previous copy is the whole one
+                Files.move(old.toPath(), partition.directory.toPath());
+            }
+            if (new File(partition.directory, "schema.csv").exists()) {
+                read(partition);
+                heldRows += partition.rows;
+            }
+            partitions.put(name, partition);
+        }
+        return partition;
+    }
+
+    /*
+     Writes the partitions added to since the last flush.
+     */
+    public synchronized void flush() throws IOException {
+        int rows = 0;
+        for (Partition partition : partitions.values()) {
+            write(partition);
+            rows += partition.rows;
+        }
+        if (!partitions.isEmpty()) log.info("Exported {} partitions, {} rows to {}", partitions.size(), rows, directory);
+        partitions.clear();
+        heldRows = 0;
+    }
+
+    private static File sibling(File directory, String suffix) {
+        return new File(directory.getParentFile(), directory.getName() + suffix);
+    }
+
+    private static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) Files.delete(file.toPath());
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+
+    private void write(Partition partition) throws IOException {
+        File temp = sibling(partition.directory, ".tmp");
+        File old = sibling(partition.directory, ".old");
+        delete(temp);
+        if (!temp.mkdirs()) {
+            throw new IOException("Unable to create " + temp);
+        }
+        Files.write(new File(temp, "location.dict").toPath(), partition.dictionary, StandardCharsets.UTF_8);
+        writeInts(new File(temp, "location.i32"), partition.location, partition.rows);
+        writeInts(new File(temp, "date.i32"), partition.date, partition.rows);
+
+        List<String> schema = new ArrayList<>();
+        schema.add("rows," + partition.rows);
+        schema.add("location,int32,location.i32");
+        schema.add("date,int32,date.i32");
+        for (Map.Entry<String, double[]> column : partition.columns.entrySet()) {
+            String file = fileName(column.getKey()) + ".f64";
+            writeDoubles(new File(temp, file), column.getValue(), partition.rows);
+            schema.add(column.getKey() + ",float64," + file);
+        }
+        Files.write(new File(temp, "schema.csv").toPath(), schema, StandardCharsets.UTF_8);
+
+        if (partition.directory.exists()) {
+            delete(old);
+            Files.move(partition.directory.toPath(), old.toPath());
+        }
+        Files.move(temp.toPath(), partition.directory.toPath());
+        delete(old);
+    }
+
+    private void read(Partition partition) throws IOException {
+        List<String> schema = Files.readAllLines(new File(partition.directory, "schema.csv").toPath(), StandardCharsets.UTF_8);
+        int rows = Integer.parseInt(schema.get(0).split(",")[1]);
+        List<String> dictionary = Files.readAllLines(new File(partition.directory, "location.dict").toPath(), StandardCharsets.UTF_8);
+        int[] location = readInts(new File(partition.directory, "location.i32"), rows);
+        int[] date = readInts(new File(partition.directory, "date.i32"), rows);
+        for (int f = 0; f < rows; f++) partition.row(dictionary.get(location[f]), date[f]);
+        for (String line : schema.subList(3, schema.size())) {
+            int pos = line.lastIndexOf(',');
+            int typePos = line.lastIndexOf(',', pos - 1);
+            double[] values = readDoubles(new File(partition.directory, line.substring(pos + 1)), rows);
+            String code = line.substring(0, typePos);
+            for (int f = 0; f < rows; f++) {
+                if (!Double.isNaN(values[f])) partition.set(code, f, values[f]);
+            }
+        }
+    }
+
+    private static String fileName(String code) {
+        return code.replaceAll("[^A-Za-z0-9_\\-]", "_");
+    }
+
+    private static void writeInts(File file, int[] values, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(values, 0, count);
+        write(file, buffer);
+    }
+
+    private static void writeDoubles(File file, double[] values, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(values, 0, count);
+        write(file, buffer);
+    }
+
+    private static void write(File file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer read(File file, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int[] readInts(File file, int count) throws IOException {
+        int[] values = new int[count];
+        read(file, count * 4).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static double[] readDoubles(File file, int count) throws IOException {
+        double[] values = new double[count];
+        read(file, count * 8).asDoubleBuffer().get(values);
+        return values;
+    }
+}
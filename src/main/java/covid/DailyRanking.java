@@ -0,0 +1,295 @@
+package covid;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ Rank and percentile of each location among the locations of its tier (UTLA for UA, CTY, MD and LONB, otherwise
+ its type: RGN, CCG, WD...) for selected codes, per day, from the series in the TimeSeriesStore.
+
+ touch() marks the days whose values changed, build() reranks those days, one task per day on a pool of
+ parallelism threads, each a single pass over the measure's locations. Tiers with more than exactLimit locations
+ (wards) are ranked against a quantile sketch of the day's values (log buckets, about 1% relative error) instead of
+ a sort. Rank 1 is the highest value, tied values share a rank, the percentile is the share of the other locations
+ with a lower value (ties count half).
+
+ The result for a location is a report with the daily report's identifier and a <code>-rank and <code>-percentile
+ group per code, the population count being the number of locations ranked, meant to be merged into the daily
+ report.
+ */
+public class DailyRanking {
+
+    private static final String SYSTEM = "https://fhir.mayfield-is.co.uk/Ranking";
+
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    public interface IReportHandler {
+        void accept(MeasureReport report) throws InterruptedException;
+    }
+
+    private final TimeSeriesStore store;
+
+    private final LocationRegistry locations;
+
+    // measure -> codes ranked
+    private final Map<String, List<String>> codes = new LinkedHashMap<>();
+
+    private final int exactLimit;
+
+    private final int parallelism;
+
+    // measure -> days (epoch day) changed since the last build
+    private Map<String, TreeSet<Integer>> touched = new HashMap<>();
+
+    // measure -> identifier system of its daily reports
+    private final Map<String, String> systems = new ConcurrentHashMap<>();
+
+    /*
+     measures is a comma separated list of measure:code, e.g. PHE_COVID:CASES/MILLION
+     */
+    public DailyRanking(TimeSeriesStore store, LocationRegistry locations, String measures, int exactLimit, int parallelism) {
+        this.store = store;
+        this.locations = locations;
+        this.exactLimit = exactLimit;
+        this.parallelism = Math.max(1, parallelism);
+        for (String entry : measures.split(",")) {
+            int pos = entry.indexOf(':');
+            if (pos <= 0) continue;
+            codes.computeIfAbsent(entry.substring(0, pos).trim(), k -> new ArrayList<>()).add(entry.substring(pos + 1).trim());
+        }
+    }
+
+    public synchronized void touch(String measure, MeasureReport report) {
+        if (!codes.containsKey(measure)) return;
+        LocalDate date = report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        touched.computeIfAbsent(measure, k -> new TreeSet<>()).add((int) date.toEpochDay());
+        systems.putIfAbsent(measure, report.getIdentifierFirstRep().getSystem());
+    }
+
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Set<Integer> days : touched.values()) pending += days.size();
+        return pending;
+    }
+
+    private static class Ranks {
+        // [code][location], 0 where the location had no value
+        int[][] rank;
+        float[][] percentile;
+        int[][] ranked;
+    }
+
+    public void build(Map<String, String> measureIds, IReportHandler handler) throws Exception {
+        Map<String, TreeSet<Integer>> days;
+        synchronized (this) {
+            days = touched;
+            touched = new HashMap<>();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "ranking");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Map.Entry<String, TreeSet<Integer>> measure : days.entrySet()) {
+                List<String> measureCodes = codes.get(measure.getKey());
+                String[] names = store.getLocations(measure.getKey()).toArray(new String[0]);
+                TimeSeriesStore.Snapshot[] snapshots = new TimeSeriesStore.Snapshot[names.length];
+                String[] tiers = new String[names.length];
+                // [code][location] column of the code in the location's snapshot, -1 if it has none
+                int[][] columns = new int[measureCodes.size()][names.length];
+                for (int l = 0; l < names.length; l++) {
+                    snapshots[l] = store.get(measure.getKey(), names[l]);
+                    int idx = locations.indexOf(names[l]);
+                    tiers[l] = idx == LocationRegistry.NONE ? "" : locations.getTier(idx);
+                    for (int c = 0; c < measureCodes.size(); c++) {
+                        columns[c][l] = snapshots[l] == null ? -1 : Arrays.asList(snapshots[l].codes).indexOf(measureCodes.get(c));
+                    }
+                }
+
+                List<Integer> dayList = new ArrayList<>(measure.getValue());
+                List<Future<Ranks>> ranked = new ArrayList<>();
+                for (int day : dayList) {
+                    ranked.add(executor.submit(() -> rank(day, measureCodes, snapshots, columns, tiers)));
+                }
+                for (int d = 0; d < dayList.size(); d++) {
+                    Ranks ranks;
+                    try {
+                        ranks = ranked.get(d).get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+                        throw ex;
+                    }
+                    emit(measure.getKey(), measureIds.get(measure.getKey()), LocalDate.ofEpochDay(dayList.get(d)),
+                            measureCodes, names, tiers, ranks, handler);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Ranks rank(int day, List<String> measureCodes, TimeSeriesStore.Snapshot[] snapshots, int[][] columns, String[] tiers) {
+        Ranks ranks = new Ranks();
+        ranks.rank = new int[measureCodes.size()][snapshots.length];
+        ranks.percentile = new float[measureCodes.size()][snapshots.length];
+        ranks.ranked = new int[measureCodes.size()][snapshots.length];
+        for (int c = 0; c < measureCodes.size(); c++) {
+            // One pass over the locations, grouping the day's values by tier
+            Map<String, List<Integer>> byTier = new HashMap<>();
+            double[] values = new double[snapshots.length];
+            Arrays.fill(values, Double.NaN);
+            for (int l = 0; l < snapshots.length; l++) {
+                int col = columns[c][l];
+                if (col < 0) continue;
+                int row = Arrays.binarySearch(snapshots[l].days, day);
+                if (row < 0) continue;
+                values[l] = snapshots[l].values[row][col];
+                if (Double.isNaN(values[l])) continue;
+                byTier.computeIfAbsent(tiers[l], k -> new ArrayList<>()).add(l);
+            }
+            for (List<Integer> group : byTier.values()) {
+                if (group.size() > exactLimit) {
+                    rankSketch(group, values, ranks, c);
+                } else {
+                    rankExact(group, values, ranks, c);
+                }
+            }
+        }
+        return ranks;
+    }
+
+    private static void rankExact(List<Integer> group, double[] values, Ranks ranks, int c) {
+        int n = group.size();
+        double[] sorted = new double[n];
+        for (int f = 0; f < n; f++) sorted[f] = values[group.get(f)];
+        Arrays.sort(sorted);
+        for (int l : group) {
+            double value = values[l];
+            int below = lowerBound(sorted, value);
+            int equal = lowerBound(sorted, Math.nextUp(value)) - below;
+            set(ranks, c, l, n - below - equal + 1, below, equal, n);
+        }
+    }
+
+    private static int lowerBound(double[] sorted, double value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static void rankSketch(List<Integer> group, double[] values, Ranks ranks, int c) {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int l : group) sketch.add(values[l]);
+        sketch.seal();
+        int n = group.size();
+        for (int l : group) {
+            int below = sketch.countBelow(values[l]);
+            int equal = sketch.countBucket(values[l]);
+            set(ranks, c, l, n - below - equal + 1, below, equal, n);
+        }
+    }
+
+    private static void set(Ranks ranks, int c, int l, int rank, int below, int equal, int n) {
+        ranks.rank[c][l] = rank;
+        ranks.percentile[c][l] = n > 1 ? (float) (100.0 * (below + 0.5 * (equal - 1)) / (n - 1)) : 100f;
+        ranks.ranked[c][l] = n;
+    }
+
+    private void emit(String measure, String measureId, LocalDate day, List<String> measureCodes, String[] names,
+                      String[] tiers, Ranks ranks, IReportHandler handler) throws InterruptedException {
+        Date start = Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant());
+        for (int l = 0; l < names.length; l++) {
+            MeasureReport report = null;
+            for (int c = 0; c < measureCodes.size(); c++) {
+                if (ranks.ranked[c][l] == 0) continue;
+                if (report == null) {
+                    report = new MeasureReport();
+                    report.addIdentifier().setSystem(systems.get(measure)).setValue(names[l] + "-" + STAMP.format(day));
+                    report.setDate(start);
+                    report.setPeriod(new Period().setStart(start));
+                    report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+                    report.setType(MeasureReport.MeasureReportType.SUMMARY);
+                    report.setMeasure(measureId);
+                    Identifier identifier = new Identifier().setSystem(locations.getOnsSystem()).setValue(names[l]);
+                    report.getSubject().setIdentifier(identifier);
+                    report.getReporter().setIdentifier(identifier.copy());
+                    int idx = locations.indexOf(names[l]);
+                    if (idx != LocationRegistry.NONE) {
+                        report.getSubject().setReference(locations.getId(idx)).setDisplay(locations.getName(idx));
+                        report.getReporter().setReference(locations.getId(idx)).setDisplay(locations.getName(idx));
+                    }
+                }
+                String code = measureCodes.get(c);
+                MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+                group.setCode(new CodeableConcept().addCoding(new Coding().setSystem(SYSTEM).setCode(code + "-rank")
+                        .setDisplay("Rank of " + code + " within " + tiers[l])));
+                group.addPopulation().setCount(ranks.ranked[c][l]);
+                group.setMeasureScore(new Quantity().setValue(ranks.rank[c][l]));
+
+                group = report.addGroup();
+                group.setCode(new CodeableConcept().addCoding(new Coding().setSystem(SYSTEM).setCode(code + "-percentile")
+                        .setDisplay("Percentile of " + code + " within " + tiers[l])));
+                group.addPopulation().setCount(ranks.ranked[c][l]);
+                group.setMeasureScore(new Quantity().setValue(Math.round(ranks.percentile[c][l] * 100) / 100.0));
+            }
+            if (report != null) handler.accept(report);
+        }
+    }
+
+    /*
+     Counts per logarithmic bucket, bucket i holding values in (gamma^(i-1), gamma^i], mirrored for negative
+     values with zero on its own, so a value's position is known to within about 1% of the value.
+     */
+    static class QuantileSketch {
+
+        private static final double GAMMA = 1.02;
+
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+
+        private final Map<Long, Integer> counts = new HashMap<>();
+
+        private long[] buckets;
+
+        private int[] cumulative;
+
+        private static long bucket(double value) {
+            if (value == 0) return 0;
+            long idx = (long) Math.ceil(Math.log(Math.abs(value)) / LOG_GAMMA);
+            // Shifted so every positive bucket sorts above zero and every negative one below
+            return value > 0 ? idx + (1L << 32) : -(idx + (1L << 32));
+        }
+
+        void add(double value) {
+            counts.merge(bucket(value), 1, Integer::sum);
+        }
+
+        void seal() {
+            buckets = new long[counts.size()];
+            int f = 0;
+            for (long key : counts.keySet()) buckets[f++] = key;
+            Arrays.sort(buckets);
+            cumulative = new int[buckets.length + 1];
+            for (f = 0; f < buckets.length; f++) cumulative[f + 1] = cumulative[f] + counts.get(buckets[f]);
+        }
+
+        int countBelow(double value) {
+            int idx = Arrays.binarySearch(buckets, bucket(value));
+            return cumulative[idx < 0 ? -idx - 1 : idx];
+        }
+
+        int countBucket(double value) {
+            Integer count = counts.get(bucket(value));
+            return count == null ? 0 : count;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package covid;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ Sends every bundle to each configured FHIR server (target). The bundle is encoded once and the same JSON goes to all
+ of them, each target has its own client and token (in its BundleUploader) and its own pool of concurrency threads.
+
+ The first target is the primary. Response handlers see the primary's response, and a failure there fails the run.
+ A failure on any other target is counted and logged against that target and the run carries on.
+ A send with a handler waits for the primary unless told not to, one without returns once the bundle is queued,
+ flush() waits for everything outstanding.
+
+ As the same JSON goes everywhere its references must resolve on every target, so with more than one target the
+ Measures, Locations and reports have client assigned ids (upload.clientIds) rather than the primary's.
+ */
+public class FanOutUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutUploader.class);
+
+    private class Target {
+        String name;
+        BundleUploader uploader;
+        ExecutorService executor;
+        // Bundles queued or in flight, bounds the memory held for a slow target
+        Semaphore permits;
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        volatile String lastError;
+    }
+
+    private final FhirContext ctxFHIR;
+
+    private final List<Target> targets = new ArrayList<>();
+
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    private volatile Exception primaryFailure;
+
+    public FanOutUploader(FhirContext ctxFHIR) {
+        this.ctxFHIR = ctxFHIR;
+    }
+
+    public void addTarget(String name, BundleUploader uploader, int concurrency) {
+        Target target = new Target();
+        target.name = name;
+        target.uploader = uploader;
+        target.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread thread = new Thread(r, "upload-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        target.permits = new Semaphore(Math.max(1, concurrency) * 2);
+        targets.add(target);
+    }
+
+    public void send(Bundle bundle, BundleUploader.IResponseHandler handler) throws Exception {
+        send(bundle, handler, handler != null);
+    }
+
+    /*
+     Without wait the handler is called on the primary's upload thread once its response is in, and this returns
+     once the bundle is queued.
+     */
+    public void send(Bundle bundle, BundleUploader.IResponseHandler handler, boolean wait) throws Exception {
+        if (bundle.getEntry().isEmpty()) return;
+        checkFailure();
+        String encoded = ctxFHIR.newJsonParser().encodeResourceToString(bundle);
+
+        Future<?> primary = null;
+        synchronized (pending) {
+            pending.removeIf(Future::isDone);
+        }
+        for (Target target : targets) {
+            boolean isPrimary = target == targets.get(0);
+            target.permits.acquire();
+            Future<?> future = target.executor.submit(() -> {
+                try {
+                    target.uploader.send(bundle, encoded, isPrimary ? handler : null);
+                    target.sent.incrementAndGet();
+                } catch (Exception ex) {
+                    target.failed.incrementAndGet();
+                    target.lastError = ex.toString();
+                    if (isPrimary) {
+                        primaryFailure = ex;
+                    } else {
+                        log.error("Target {} failed to send bundle of {} entries - {}", target.name, bundle.getEntry().size(), ex.getMessage());
+                    }
+                } finally {
+                    target.permits.release();
+                }
+            });
+            if (isPrimary) primary = future;
+            synchronized (pending) {
+                pending.add(future);
+            }
+        }
+        if (wait && primary != null) {
+            primary.get();
+            checkFailure();
+        }
+    }
+
+    /*
+     Waits for every queued bundle, then fails if the primary did.
+     */
+    public void flush() throws Exception {
+        List<Future<?>> waiting;
+        synchronized (pending) {
+            waiting = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Future<?> future : waiting) future.get();
+        checkFailure();
+    }
+
+    private void checkFailure() throws Exception {
+        Exception failure = primaryFailure;
+        if (failure != null) {
+            primaryFailure = null;
+            throw failure;
+        }
+    }
+
+    public int getQuarantined() {
+        int quarantined = 0;
+        for (Target target : targets) quarantined += target.uploader.getQuarantined();
+        return quarantined;
+    }
+
+    public void logSummary() {
+        for (Target target : targets) {
+            log.info("Target {}: {} bundles sent, {} failed, {} resources quarantined{}", target.name,
+                    target.sent.get(), target.failed.get(), target.uploader.getQuarantined(),
+                    target.lastError == null ? "" : ", last error " + target.lastError);
+        }
+    }
+
+    public void shutdown() {
+        for (Target target : targets) target.executor.shutdown();
+    }
+}
@@ -0,0 +1,221 @@
+package covid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Service mode. Keeps the application (FHIR context, reference data and locations) resident and polls each source on
+ its own interval, running a pipeline only when one of its sources has changed (ETag, Last-Modified or Content-Length
+ on a HEAD request).
+
+ Pipelines run one at a time on the scheduler thread as they share the report buffers.
+
+ Admin endpoints, unauthenticated so bound to adminAddress (loopback unless configured otherwise):
+   GET  /admin/status            state of every pipeline
+   POST /admin/run/{pipeline}    run now, whether or not the sources changed
+ */
+public class IngestionService {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestionService.class);
+
+    public interface IPipeline {
+        void run() throws Exception;
+    }
+
+    private class Pipeline {
+        String name;
+        IPipeline task;
+        List<String> sources;
+        long interval;
+
+        volatile boolean running = false;
+        volatile Date lastRun;
+        volatile Date lastChecked;
+        volatile long lastDuration;
+        volatile String lastResult = "NEVER_RUN";
+        volatile String lastError;
+        volatile int runs = 0;
+    }
+
+    private final HttpClient httpClient;
+
+    private final String adminAddress;
+
+    private final int adminPort;
+
+    private final Map<String, Pipeline> pipelines = new LinkedHashMap<>();
+
+    private final Map<String, String> sourceVersions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ingestion"));
+
+    private HttpServer server;
+
+    public IngestionService(HttpClient httpClient, String adminAddress, int adminPort) {
+        this.httpClient = httpClient;
+        this.adminAddress = adminAddress;
+        this.adminPort = adminPort;
+    }
+
+    public void addPipeline(String name, long intervalMinutes, IPipeline task, String... sources) {
+        Pipeline pipeline = new Pipeline();
+        pipeline.name = name;
+        pipeline.task = task;
+        pipeline.sources = Arrays.asList(sources);
+        pipeline.interval = intervalMinutes;
+        pipelines.put(name, pipeline);
+    }
+
+    public void start() throws IOException {
+        for (Pipeline pipeline : pipelines.values()) {
+            scheduler.scheduleWithFixedDelay(() -> poll(pipeline), 0, pipeline.interval, TimeUnit.MINUTES);
+            log.info("Pipeline {} scheduled every {} minutes", pipeline.name, pipeline.interval);
+        }
+        if (adminPort > 0) {
+            server = HttpServer.create(new InetSocketAddress(adminAddress, adminPort), 0);
+            server.createContext("/admin/status", this::handleStatus);
+            server.createContext("/admin/run/", this::handleRun);
+            server.start();
+            log.info("Admin endpoints on {}:{}", adminAddress, adminPort);
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+        if (server != null) server.stop(0);
+    }
+
+    private void poll(Pipeline pipeline) {
+        // Anything thrown out of here would cancel the pipeline's schedule for good
+        try {
+            pipeline.lastChecked = new Date();
+            boolean changed = false;
+            for (String source : pipeline.sources) {
+                // check every source so all versions are recorded
+                if (hasChanged(source)) changed = true;
+            }
+            if (changed) {
+                execute(pipeline);
+            } else {
+                log.debug("Pipeline {} sources unchanged", pipeline.name);
+            }
+        } catch (Throwable ex) {
+            log.error("Pipeline {} poll failed", pipeline.name, ex);
+        }
+    }
+
+    private void execute(Pipeline pipeline) {
+        log.info("Running pipeline {}", pipeline.name);
+        long start = System.currentTimeMillis();
+        pipeline.running = true;
+        try {
+            pipeline.task.run();
+            pipeline.lastResult = "OK";
+            pipeline.lastError = null;
+        } catch (Throwable ex) {
+            // Errors as well (InternalError from the report producers), the pipeline stays scheduled
+            log.error("Pipeline {} failed", pipeline.name, ex);
+            pipeline.lastResult = "FAILED";
+            pipeline.lastError = ex.toString();
+            // Try again on the next poll
+            for (String source : pipeline.sources) sourceVersions.remove(source);
+        } finally {
+            pipeline.running = false;
+            pipeline.runs++;
+            pipeline.lastRun = new Date(start);
+            pipeline.lastDuration = System.currentTimeMillis() - start;
+            log.info("Pipeline {} {} in {} ms", pipeline.name, pipeline.lastResult, pipeline.lastDuration);
+        }
+    }
+
+    private boolean hasChanged(String source) {
+        String version = null;
+        try {
+            HttpResponse response = httpClient.execute(new HttpHead(source));
+            if (response.getEntity() != null) EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode() < 400) {
+                version = header(response, "ETag") + "|" + header(response, "Last-Modified") + "|" + header(response, "Content-Length");
+                if (version.equals("||")) version = null;
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to check source {} - {}", source, ex.getMessage());
+        }
+        if (version == null) {
+            // No validators, can't tell, so treat as changed
+            return true;
+        }
+        String previous = sourceVersions.put(source, version);
+        return !version.equals(previous);
+    }
+
+    private String header(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? "" : header.getValue();
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        JSONArray array = new JSONArray();
+        for (Pipeline pipeline : pipelines.values()) {
+            JSONObject status = new JSONObject();
+            status.put("name", pipeline.name);
+            status.put("running", pipeline.running);
+            status.put("intervalMinutes", pipeline.interval);
+            status.put("runs", pipeline.runs);
+            status.put("lastResult", pipeline.lastResult);
+            if (pipeline.lastRun != null) status.put("lastRun", pipeline.lastRun.toInstant().toString());
+            if (pipeline.lastChecked != null) status.put("lastChecked", pipeline.lastChecked.toInstant().toString());
+            status.put("lastDurationMs", pipeline.lastDuration);
+            if (pipeline.lastError != null) status.put("lastError", pipeline.lastError);
+            JSONObject sources = new JSONObject();
+            for (String source : pipeline.sources) {
+                sources.put(source, sourceVersions.getOrDefault(source, ""));
+            }
+            status.put("sources", sources);
+            array.put(status);
+        }
+        respond(exchange, 200, array.toString(2));
+    }
+
+    private void handleRun(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, new JSONObject().put("error", "POST required").toString());
+            return;
+        }
+        String name = exchange.getRequestURI().getPath().substring("/admin/run/".length());
+        Pipeline pipeline = pipelines.get(name);
+        if (pipeline == null) {
+            respond(exchange, 404, new JSONObject().put("error", "Unknown pipeline " + name).toString());
+            return;
+        }
+        scheduler.execute(() -> execute(pipeline));
+        respond(exchange, 202, new JSONObject().put("queued", name).toString());
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+}
@@ -0,0 +1,282 @@
+package covid;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ Locations held as parallel arrays indexed by position, with the ONS code -> index map as the only per location object.
+
+ Population, HI, MDI and area are kept as primitives so report generation reads them directly,
+ HAPI Location resources are only built (toLocation) when locations are sent to the server.
+ Absent values are NO_POPULATION for population and NaN for the others.
+ */
+public class LocationRegistry {
+
+    public static final int NONE = -1;
+
+    public static final int NO_POPULATION = Integer.MIN_VALUE;
+
+    // Upper tier local authorities, compared as one tier whichever of these a location was loaded as
+    public static final String UTLA = "UTLA";
+
+    private static final List<String> UTLA_TYPES = Arrays.asList("UA", "NHSUA", "CTY", "MD", "LONB");
+
+    private final String onsSystem;
+
+    private final Map<String, Integer> index = new HashMap<>();
+
+    private int size = 0;
+
+    private String[] codes = new String[0];
+    private String[] names = new String[0];
+    private String[][] types = new String[0][];
+    private String[] parentCodes = new String[0];
+    private String[] ids = new String[0];
+    private String[] utlas = new String[0];
+    private int[] population = new int[0];
+    private double[] hi = new double[0];
+    private double[] mdi = new double[0];
+    private float[] area = new float[0];
+
+    public LocationRegistry(String onsSystem) {
+        this.onsSystem = onsSystem;
+    }
+
+    public String getOnsSystem() {
+        return onsSystem;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int indexOf(String code) {
+        Integer idx = index.get(code);
+        return idx == null ? NONE : idx;
+    }
+
+    public boolean contains(String code) {
+        return index.containsKey(code);
+    }
+
+    public Set<String> getCodes() {
+        return index.keySet();
+    }
+
+    /*
+     Adds the location, or clears the attributes of an existing one (keeping its server id) so it can be replaced.
+     A location loaded again as another type (RGN and NHSRGN) keeps the earlier types and gains the new one.
+     */
+    public int put(String code, String name, String type) {
+        Integer idx = index.get(code);
+        if (idx == null) {
+            if (size == codes.length) grow();
+            idx = size++;
+            index.put(code, idx);
+            codes[idx] = code;
+            ids[idx] = null;
+            types[idx] = new String[] { type };
+        } else if (!Arrays.asList(types[idx]).contains(type)) {
+            types[idx] = Arrays.copyOf(types[idx], types[idx].length + 1);
+            types[idx][types[idx].length - 1] = type;
+        }
+        names[idx] = name;
+        parentCodes[idx] = null;
+        utlas[idx] = null;
+        population[idx] = NO_POPULATION;
+        hi[idx] = Double.NaN;
+        mdi[idx] = Double.NaN;
+        area[idx] = Float.NaN;
+        return idx;
+    }
+
+    private void grow() {
+        int capacity = Math.max(256, codes.length * 2);
+        codes = Arrays.copyOf(codes, capacity);
+        names = Arrays.copyOf(names, capacity);
+        types = Arrays.copyOf(types, capacity);
+        parentCodes = Arrays.copyOf(parentCodes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        utlas = Arrays.copyOf(utlas, capacity);
+        population = Arrays.copyOf(population, capacity);
+        hi = Arrays.copyOf(hi, capacity);
+        mdi = Arrays.copyOf(mdi, capacity);
+        area = Arrays.copyOf(area, capacity);
+    }
+
+    public String getCode(int idx) {
+        return codes[idx];
+    }
+
+    public String getName(int idx) {
+        return names[idx];
+    }
+
+    /*
+     Type the location was first loaded as.
+     */
+    public String getType(int idx) {
+        return types[idx][0];
+    }
+
+    public String[] getTypes(int idx) {
+        return types[idx];
+    }
+
+    /*
+     True if any of the location's types is an upper tier local authority (UA, CTY, MD or LONB).
+     */
+    public boolean isUTLA(int idx) {
+        for (String type : types[idx]) {
+            if (UTLA_TYPES.contains(type)) return true;
+        }
+        return false;
+    }
+
+    /*
+     Tier the location is compared within, UTLA for the upper tier authorities, otherwise its first type.
+     */
+    public String getTier(int idx) {
+        return isUTLA(idx) ? UTLA : getType(idx);
+    }
+
+    public String getParentCode(int idx) {
+        return parentCodes[idx];
+    }
+
+    public int getParent(int idx) {
+        return parentCodes[idx] == null ? NONE : indexOf(parentCodes[idx]);
+    }
+
+    public void setParentCode(int idx, String parentCode) {
+        parentCodes[idx] = parentCode;
+    }
+
+    public String getId(int idx) {
+        return ids[idx];
+    }
+
+    public void setId(int idx, String id) {
+        ids[idx] = id;
+    }
+
+    public String getUTLA(int idx) {
+        return utlas[idx];
+    }
+
+    public void setUTLA(int idx, String utla) {
+        utlas[idx] = utla;
+    }
+
+    public boolean hasPopulation(int idx) {
+        return population[idx] != NO_POPULATION;
+    }
+
+    public int getPopulation(int idx) {
+        return population[idx];
+    }
+
+    public void setPopulation(int idx, int value) {
+        population[idx] = value;
+    }
+
+    public double getHI(int idx) {
+        return hi[idx];
+    }
+
+    public void setHI(int idx, double value) {
+        hi[idx] = value;
+    }
+
+    public double getMDI(int idx) {
+        return mdi[idx];
+    }
+
+    public void setMDI(int idx, double value) {
+        mdi[idx] = value;
+    }
+
+    public float getArea(int idx) {
+        return area[idx];
+    }
+
+    public void setArea(int idx, float value) {
+        area[idx] = value;
+    }
+
+    /*
+     Index values are held as doubles, whole numbers are returned without a fractional part as they were in the source.
+     */
+    public static BigDecimal toDecimal(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) return BigDecimal.valueOf((long) value);
+        return BigDecimal.valueOf(value);
+    }
+
+    /*
+     Hash of everything toLocation puts in the resource, without building it.
+     */
+    public long contentHash(int idx) {
+        long hash = RunIndex.mix(0, names[idx].hashCode());
+        hash = RunIndex.mix(hash, Arrays.hashCode(types[idx]));
+        hash = RunIndex.mix(hash, parentCodes[idx] == null ? 0 : parentCodes[idx].hashCode());
+        int parent = getParent(idx);
+        hash = RunIndex.mix(hash, parent == NONE || ids[parent] == null ? 0 : ids[parent].hashCode());
+        hash = RunIndex.mix(hash, utlas[idx] == null ? 0 : utlas[idx].hashCode());
+        hash = RunIndex.mix(hash, population[idx]);
+        hash = RunIndex.mix(hash, Double.doubleToLongBits(hi[idx]));
+        hash = RunIndex.mix(hash, Double.doubleToLongBits(mdi[idx]));
+        return RunIndex.mix(hash, Float.floatToIntBits(area[idx]));
+    }
+
+    public Location toLocation(int idx) {
+        Location location = new Location();
+        if (ids[idx] != null) location.setId(ids[idx]);
+        location.addIdentifier().setSystem(onsSystem).setValue(codes[idx]);
+        location.setName(names[idx]);
+
+        if (parentCodes[idx] != null) {
+            location.getPartOf()
+                    .getIdentifier()
+                    .setSystem(onsSystem).setValue(parentCodes[idx]);
+            int parent = getParent(idx);
+            if (parent != NONE && ids[parent] != null) {
+                location.getPartOf().setReference(ids[parent]);
+            }
+        }
+        if (hasPopulation(idx)) {
+            Extension extension = location.addExtension();
+            extension.setUrl("https://fhir.mayfield-is.co.uk/Population");
+            extension.setValue(new IntegerType().setValue(population[idx]));
+        }
+        if (!Double.isNaN(hi[idx])) {
+            Extension extension = location.addExtension();
+            extension.setUrl("https://fhir.mayfield-is.co.uk/HI");
+            extension.setValue(new Quantity().setValue(toDecimal(hi[idx])));
+        }
+        if (!Double.isNaN(mdi[idx])) {
+            Extension extension = location.addExtension();
+            extension.setUrl("https://fhir.mayfield-is.co.uk/MDI");
+            extension.setValue(new Quantity().setValue(toDecimal(mdi[idx])));
+        }
+        if (!Float.isNaN(area[idx])) {
+            Extension extension = location.addExtension();
+            extension.setUrl("https://fhir.mayfield-is.co.uk/AREAEHECT");
+            extension.setValue(new Quantity().setValue(area[idx]));
+        }
+        for (String type : types[idx]) {
+            location.addType().addCoding().setSystem("https://fhir.mayfield-is.co.uk/TYPE").setCode(type);
+        }
+        if (utlas[idx] != null) {
+            Extension extension = location.addExtension();
+            extension.setUrl("https://fhir.mayfield-is.co.uk/UTLA");
+            extension.setValue(new Identifier().setSystem(onsSystem).setValue(utlas[idx]));
+        }
+        return location;
+    }
+}
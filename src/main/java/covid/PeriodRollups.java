@@ -0,0 +1,157 @@
+package covid;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.temporal.IsoFields;
+import java.util.*;
+
+/*
+ Weekly (ISO week, from Monday) and monthly MeasureReports built from the daily series in the TimeSeriesStore.
+
+ touch() is called with each daily report whose values changed and marks its week and month, build() recomputes
+ only the marked periods, so a daily run redoes the current week and month and a backfill everything it covered.
+ Codes which are daily counts are summed over the period (BMD figures are weekly counts, so all summed), anything
+ else (cumulative totals, rates, indices) takes the last value in the period.
+ The period reports use the daily report's Measure, with their own identifier system per measure and granularity
+ and period start and end, a period still in progress is PENDING.
+ */
+public class PeriodRollups {
+
+    private static final String SYSTEM = "https://fhir.mayfield-is.co.uk/Measure/";
+
+    private static final Set<String> SUMMED = new HashSet<>(Arrays.asList("NEW_CASES", "daily-triage", "daily-online"));
+
+    private static final String SUMMED_MEASURE = "MORTALITY_BMD";
+
+    public interface IReportHandler {
+        void accept(MeasureReport report) throws InterruptedException;
+    }
+
+    private static class Key {
+        final String measure;
+        final String location;
+        final boolean week;
+        final LocalDate start;
+
+        Key(String measure, String location, boolean week, LocalDate start) {
+            this.measure = measure;
+            this.location = location;
+            this.week = week;
+            this.start = start;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return week == key.week && measure.equals(key.measure) && location.equals(key.location) && start.equals(key.start);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(measure, location, week, start);
+        }
+    }
+
+    private final TimeSeriesStore store;
+
+    private Set<Key> touched = new LinkedHashSet<>();
+
+    // code -> coding (system and display) as seen in the daily reports
+    private final Map<String, Coding> codings = new HashMap<>();
+
+    public PeriodRollups(TimeSeriesStore store) {
+        this.store = store;
+    }
+
+    public synchronized void touch(String measure, MeasureReport report) {
+        String location = report.getSubject().getIdentifier().getValue();
+        LocalDate date = report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        touched.add(new Key(measure, location, true, date.with(DayOfWeek.MONDAY)));
+        touched.add(new Key(measure, location, false, date.withDayOfMonth(1)));
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            Coding coding = group.getCode().getCodingFirstRep();
+            if (!codings.containsKey(coding.getCode())) codings.put(coding.getCode(), coding.copy());
+        }
+    }
+
+    public synchronized int getPending() {
+        return touched.size();
+    }
+
+    /*
+     Builds a report for each period marked since the last build. measureIds maps the measure code to the Measure
+     reference, the subject and reporter are the location.
+     */
+    public void build(Map<String, String> measureIds, LocationRegistry locations, IReportHandler handler) throws InterruptedException {
+        Set<Key> keys;
+        synchronized (this) {
+            keys = touched;
+            touched = new LinkedHashSet<>();
+        }
+        LocalDate today = LocalDate.now();
+        for (Key key : keys) {
+            TimeSeriesStore.Snapshot snapshot = store.get(key.measure, key.location);
+            if (snapshot == null) continue;
+            LocalDate end = key.week ? key.start.plusWeeks(1) : key.start.plusMonths(1);
+            int from = snapshot.from(key.start);
+            int to = snapshot.to(end.minusDays(1));
+            if (from >= to) continue;
+
+            MeasureReport report = new MeasureReport();
+            report.addIdentifier()
+                    .setSystem(SYSTEM + key.measure + (key.week ? "/week" : "/month"))
+                    .setValue(key.location + "-" + label(key));
+            Date startDate = Date.from(key.start.atStartOfDay(ZoneId.systemDefault()).toInstant());
+            Date endDate = Date.from(end.atStartOfDay(ZoneId.systemDefault()).toInstant().minusMillis(1));
+            report.setDate(endDate);
+            report.setPeriod(new Period().setStart(startDate).setEnd(endDate));
+            report.setStatus(end.isAfter(today) ? MeasureReport.MeasureReportStatus.PENDING : MeasureReport.MeasureReportStatus.COMPLETE);
+            report.setType(MeasureReport.MeasureReportType.SUMMARY);
+            report.setMeasure(measureIds.get(key.measure));
+
+            Identifier identifier = new Identifier().setSystem(locations.getOnsSystem()).setValue(key.location);
+            report.getSubject().setIdentifier(identifier);
+            report.getReporter().setIdentifier(identifier.copy());
+            int location = locations.indexOf(key.location);
+            if (location != LocationRegistry.NONE) {
+                report.getSubject().setReference(locations.getId(location)).setDisplay(locations.getName(location));
+                report.getReporter().setReference(locations.getId(location)).setDisplay(locations.getName(location));
+            }
+
+            boolean sumAll = SUMMED_MEASURE.equals(key.measure);
+            for (int f = 0; f < snapshot.codes.length; f++) {
+                String code = snapshot.codes[f];
+                boolean sum = sumAll || SUMMED.contains(code);
+                double value = sum ? 0 : Double.NaN;
+                boolean found = false;
+                for (int i = from; i < to; i++) {
+                    double day = snapshot.values[i][f];
+                    if (Double.isNaN(day)) continue;
+                    value = sum ? value + day : day;
+                    found = true;
+                }
+                if (!found) continue;
+                Coding coding;
+                synchronized (this) {
+                    coding = codings.get(code);
+                }
+                MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+                group.setCode(new CodeableConcept().addCoding(coding == null ? new Coding().setCode(code) : coding.copy()));
+                group.setMeasureScore(new Quantity().setValue(LocationRegistry.toDecimal(value)));
+            }
+            if (report.hasGroup()) handler.accept(report);
+        }
+    }
+
+    private static String label(Key key) {
+        if (key.week) {
+            return String.format("%d-W%02d", key.start.get(IsoFields.WEEK_BASED_YEAR), key.start.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+        }
+        return YearMonth.from(key.start).toString();
+    }
+}
@@ -0,0 +1,106 @@
+package covid;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Bounded hand off between a report generator and the uploader.
+
+ The generator runs on its own thread and add() blocks while the queue is full, so at most capacity reports
+ (plus the bundle being built) are held at once however large the source is.
+ A generator failure is rethrown to the reader from take(), a reader failure stops the generator.
+ */
+public class ReportQueue {
+
+    public interface IProducer {
+        void run() throws Exception;
+    }
+
+    private static final MeasureReport END = new MeasureReport();
+
+    private final BlockingQueue<MeasureReport> queue;
+
+    private Thread producer;
+
+    private volatile Throwable failure;
+
+    private volatile boolean cancelled = false;
+
+    private int produced = 0;
+
+    private final boolean derived;
+
+    public ReportQueue(int capacity) {
+        this(capacity, false);
+    }
+
+    /*
+     Derived reports (roll ups, rankings) are built from the series store, so they are not recorded in it again.
+     */
+    public ReportQueue(int capacity, boolean derived) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.derived = derived;
+    }
+
+    public boolean isDerived() {
+        return derived;
+    }
+
+    public void start(String name, IProducer task) {
+        producer = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                failure = ex;
+            } finally {
+                finish();
+            }
+        }, "reports-" + name);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /*
+     Called by the generator, waits for space in the queue.
+     */
+    public void add(MeasureReport report) throws InterruptedException {
+        if (cancelled) throw new InterruptedException("Report upload stopped");
+        queue.put(report);
+        produced++;
+    }
+
+    public int getProduced() {
+        return produced;
+    }
+
+    /*
+     Next report, or null once the generator has finished.
+     */
+    public MeasureReport take() throws Exception {
+        MeasureReport report = queue.take();
+        if (report == END) {
+            if (failure instanceof Exception) throw (Exception) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            return null;
+        }
+        return report;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        if (producer != null) producer.interrupt();
+        queue.clear();
+    }
+
+    private void finish() {
+        try {
+            // Reader may have gone, don't wait forever
+            while (!cancelled && !queue.offer(END, 1, TimeUnit.SECONDS)) ;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package covid;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Resources sent during the current run, so one produced again by a later stage is only sent if it adds something.
+
+ Keys are a 64 bit hash of resource type, identifier system and value held in an open addressing long[] table,
+ next to a hash of the content last sent. For MeasureReports the groups last sent are kept as well (interned
+ code + population and the score), so a later report with the same identifier is sent with the earlier groups
+ it doesn't have itself instead of replacing them on the server.
+
+ Synchronized, backfill partitions upload concurrently. clear() at the end of each run.
+ */
+public class RunIndex {
+
+    private static final long EMPTY = 0;
+
+    private static class Shape {
+        String system;
+        String code;
+        String display;
+        // Population count, or null if the group had none
+        Integer population;
+    }
+
+    private long[] keys = new long[1024];
+
+    private long[] hashes = new long[1024];
+
+    private int[][] shapes = new int[1024][];
+
+    private double[][] scores = new double[1024][];
+
+    private int size = 0;
+
+    private int skipped = 0;
+
+    private int merged = 0;
+
+    private final List<Shape> shapeList = new ArrayList<>();
+
+    private final Map<String, Integer> shapeIndex = new HashMap<>();
+
+    public static long key(String resourceType, Identifier identifier) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, resourceType);
+        hash = fnv(hash, identifier.getSystem());
+        hash = fnv(hash, identifier.getValue());
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long fnv(long hash, String value) {
+        if (value != null) {
+            for (int f = 0; f < value.length(); f++) {
+                hash ^= value.charAt(f);
+                hash *= 0x100000001b3L;
+            }
+        }
+        // separator so "ab"+"c" and "a"+"bc" differ
+        hash ^= 0x1f;
+        return hash * 0x100000001b3L;
+    }
+
+    static long mix(long hash, long value) {
+        hash ^= value;
+        hash *= 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 31);
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int idx = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[idx] != EMPTY && keys[idx] != key) idx = (idx + 1) & mask;
+        return idx;
+    }
+
+    private int insert(long key) {
+        if ((size + 1) * 2 > keys.length) grow();
+        int idx = slot(key);
+        if (keys[idx] == EMPTY) {
+            keys[idx] = key;
+            size++;
+        }
+        return idx;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldHashes = hashes;
+        int[][] oldShapes = shapes;
+        double[][] oldScores = scores;
+        keys = new long[oldKeys.length * 2];
+        hashes = new long[keys.length];
+        shapes = new int[keys.length][];
+        scores = new double[keys.length][];
+        for (int f = 0; f < oldKeys.length; f++) {
+            if (oldKeys[f] == EMPTY) continue;
+            int idx = slot(oldKeys[f]);
+            keys[idx] = oldKeys[f];
+            hashes[idx] = oldHashes[f];
+            shapes[idx] = oldShapes[f];
+            scores[idx] = oldScores[f];
+        }
+    }
+
+    public synchronized boolean contains(String resourceType, Identifier identifier) {
+        long key = key(resourceType, identifier);
+        return keys[slot(key)] == key;
+    }
+
+    /*
+     True if the resource was already sent this run with the same content, otherwise records it as sent.
+     */
+    public synchronized boolean isDuplicate(String resourceType, Identifier identifier, long contentHash) {
+        int idx = insert(key(resourceType, identifier));
+        if (contentHash == EMPTY) contentHash = 1;
+        if (hashes[idx] == contentHash) {
+            skipped++;
+            return true;
+        }
+        hashes[idx] = contentHash;
+        return false;
+    }
+
+    /*
+     Adds the groups sent earlier in the run under the same identifier which the report doesn't have, then returns
+     true if the merged report is the same as the one already sent.
+     */
+    public synchronized boolean mergeReport(MeasureReport report) {
+        int idx = insert(key("MeasureReport", report.getIdentifierFirstRep()));
+        int[] earlierShapes = shapes[idx];
+        if (earlierShapes != null) {
+            int added = 0;
+            for (int f = 0; f < earlierShapes.length; f++) {
+                Shape shape = shapeList.get(earlierShapes[f]);
+                if (hasGroup(report, shape.code)) continue;
+                MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+                group.setCode(new CodeableConcept().addCoding(
+                        new Coding().setSystem(shape.system).setCode(shape.code).setDisplay(shape.display)));
+                if (shape.population != null) group.addPopulation().setCount(shape.population);
+                if (!Double.isNaN(scores[idx][f])) {
+                    group.setMeasureScore(new Quantity().setValue(LocationRegistry.toDecimal(scores[idx][f])));
+                }
+                added++;
+            }
+            if (added > 0) merged++;
+        }
+        long contentHash = hash(report);
+        if (earlierShapes != null && hashes[idx] == contentHash) {
+            skipped++;
+            return true;
+        }
+        hashes[idx] = contentHash;
+        int[] reportShapes = new int[report.getGroup().size()];
+        double[] reportScores = new double[reportShapes.length];
+        for (int f = 0; f < reportShapes.length; f++) {
+            MeasureReport.MeasureReportGroupComponent group = report.getGroup().get(f);
+            reportShapes[f] = intern(group);
+            reportScores[f] = group.hasMeasureScore() && group.getMeasureScore().hasValue()
+                    ? group.getMeasureScore().getValue().doubleValue() : Double.NaN;
+        }
+        shapes[idx] = reportShapes;
+        scores[idx] = reportScores;
+        return false;
+    }
+
+    private static boolean hasGroup(MeasureReport report, String code) {
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            if (code.equals(group.getCode().getCodingFirstRep().getCode())) return true;
+        }
+        return false;
+    }
+
+    private int intern(MeasureReport.MeasureReportGroupComponent group) {
+        Coding coding = group.getCode().getCodingFirstRep();
+        Integer population = group.hasPopulation() ? group.getPopulationFirstRep().getCount() : null;
+        String name = coding.getSystem() + "|" + coding.getCode() + "|" + coding.getDisplay() + "|" + population;
+        Integer id = shapeIndex.get(name);
+        if (id == null) {
+            Shape shape = new Shape();
+            shape.system = coding.getSystem();
+            shape.code = coding.getCode();
+            shape.display = coding.getDisplay();
+            shape.population = population;
+            id = shapeList.size();
+            shapeList.add(shape);
+            shapeIndex.put(name, id);
+        }
+        return id;
+    }
+
+    private long hash(MeasureReport report) {
+        long hash = mix(0, report.hasPeriod() && report.getPeriod().hasStart() ? report.getPeriod().getStart().getTime() : 0);
+        hash = mix(hash, report.getSubject().getIdentifier().hasValue() ? report.getSubject().getIdentifier().getValue().hashCode() : 0);
+        hash = mix(hash, report.getMeasure() == null ? 0 : report.getMeasure().hashCode());
+        long groups = 0;
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            // Order of groups doesn't matter, so they are summed
+            long value = mix(intern(group), group.hasMeasureScore() && group.getMeasureScore().hasValue()
+                    ? Double.doubleToLongBits(group.getMeasureScore().getValue().doubleValue()) : 0);
+            groups += value;
+        }
+        return mix(hash, groups);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    public synchronized int getMerged() {
+        return merged;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(hashes, 0);
+        Arrays.fill(shapes, null);
+        Arrays.fill(scores, null);
+        shapeList.clear();
+        shapeIndex.clear();
+        size = 0;
+        skipped = 0;
+        merged = 0;
+    }
+}
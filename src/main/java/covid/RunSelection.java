@@ -0,0 +1,188 @@
+package covid;
+
+import org.apache.commons.cli.*;
+import org.hl7.fhir.r4.model.MeasureReport;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/*
+ Part of the data a run covers, from the command line. Without options a run covers everything.
+
+   -p --pipelines  PHE, MORBIDITY, BMD, NHS, comma separated
+   -t --types      location types (UA, CCG, WD...), only locations of these types are sent and reported on
+   -c --codes      ONS codes, as types. With both a location is included if it matches either
+   -f --from       first report date, yyyy-MM-dd
+   -u --to         last report date, yyyy-MM-dd
+   -b --backfill   generate and upload NHS and BMD reports in date partitions concurrently (see backfill.*)
+
+ Spring property arguments (--name=value) are passed to run() as well and are ignored here.
+ */
+public class RunSelection {
+
+    public static final String PHE = "PHE";
+
+    public static final String MORBIDITY = "MORBIDITY";
+
+    public static final String BMD = "BMD";
+
+    public static final String NHS = "NHS";
+
+    private static final List<String> PIPELINES = Arrays.asList(PHE, MORBIDITY, BMD, NHS);
+
+    private Set<String> pipelines = new HashSet<>(PIPELINES);
+
+    private Set<String> types = new HashSet<>();
+
+    private Set<String> codes = new HashSet<>();
+
+    private LocalDate from;
+
+    private LocalDate to;
+
+    private boolean backfill = false;
+
+    private boolean help = false;
+
+    private static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder("p").longOpt("pipelines").hasArg().argName("list")
+                .desc("Pipelines to run, comma separated from " + String.join(",", PIPELINES)).build());
+        options.addOption(Option.builder("t").longOpt("types").hasArg().argName("list")
+                .desc("Location types to send and report on, comma separated").build());
+        options.addOption(Option.builder("c").longOpt("codes").hasArg().argName("list")
+                .desc("ONS codes to send and report on, comma separated").build());
+        options.addOption(Option.builder("f").longOpt("from").hasArg().argName("yyyy-MM-dd")
+                .desc("First report date").build());
+        options.addOption(Option.builder("u").longOpt("to").hasArg().argName("yyyy-MM-dd")
+                .desc("Last report date").build());
+        options.addOption(Option.builder("b").longOpt("backfill")
+                .desc("Upload NHS and BMD history in date partitions, concurrently and restartable").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("Show these options").build());
+        return options;
+    }
+
+    public static RunSelection parse(String... args) throws ParseException {
+        Options options = options();
+        List<String> own = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int pos = arg.indexOf('=');
+                String name = pos < 0 ? arg.substring(2) : arg.substring(2, pos);
+                if (!options.hasLongOption(name)) continue;
+            }
+            own.add(arg);
+        }
+        CommandLine line = new DefaultParser().parse(options, own.toArray(new String[0]));
+
+        RunSelection selection = new RunSelection();
+        selection.help = line.hasOption("h");
+        selection.backfill = line.hasOption("b");
+        if (line.hasOption("p")) {
+            selection.pipelines = split(line.getOptionValue("p"));
+            for (String pipeline : selection.pipelines) {
+                if (!PIPELINES.contains(pipeline)) throw new ParseException("Unknown pipeline " + pipeline);
+            }
+        }
+        if (line.hasOption("t")) selection.types = split(line.getOptionValue("t"));
+        if (line.hasOption("c")) selection.codes = split(line.getOptionValue("c"));
+        try {
+            if (line.hasOption("f")) selection.from = LocalDate.parse(line.getOptionValue("f"));
+            if (line.hasOption("u")) selection.to = LocalDate.parse(line.getOptionValue("u"));
+        } catch (DateTimeParseException ex) {
+            throw new ParseException("Invalid date " + ex.getParsedString());
+        }
+        return selection;
+    }
+
+    private static Set<String> split(String value) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) result.add(item.trim().toUpperCase());
+        }
+        return result;
+    }
+
+    public static String usage() {
+        StringWriter out = new StringWriter();
+        new HelpFormatter().printHelp(new PrintWriter(out), HelpFormatter.DEFAULT_WIDTH,
+                "UKCovidExtractApp [options]", null, options(), HelpFormatter.DEFAULT_LEFT_PAD,
+                HelpFormatter.DEFAULT_DESC_PAD, null);
+        return out.toString();
+    }
+
+    public boolean isHelp() {
+        return help;
+    }
+
+    public boolean isBackfill() {
+        return backfill;
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public boolean hasPipeline(String pipeline) {
+        return pipelines.contains(pipeline);
+    }
+
+    public boolean isPartial() {
+        return pipelines.size() < PIPELINES.size() || hasLocationFilter() || from != null || to != null;
+    }
+
+    public boolean hasType(String type) {
+        return types.contains(type);
+    }
+
+    public boolean hasLocationFilter() {
+        return !types.isEmpty() || !codes.isEmpty();
+    }
+
+    public boolean includesLocation(String code, String[] locationTypes) {
+        if (!hasLocationFilter()) return true;
+        if (codes.contains(code)) return true;
+        if (locationTypes != null) {
+            for (String type : locationTypes) {
+                if (types.contains(type)) return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean includesDate(LocalDate date) {
+        return (from == null || !date.isBefore(from)) && (to == null || !date.isAfter(to));
+    }
+
+    public boolean includes(MeasureReport report, LocationRegistry locations) {
+        if (from != null || to != null) {
+            if (!includesDate(report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate())) {
+                return false;
+            }
+        }
+        if (hasLocationFilter()) {
+            String code = report.getSubject().getIdentifier().getValue();
+            int idx = locations.indexOf(code);
+            return includesLocation(code, idx == LocationRegistry.NONE ? null : locations.getTypes(idx));
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "pipelines " + pipelines
+                + (types.isEmpty() ? "" : ", types " + types)
+                + (codes.isEmpty() ? "" : ", codes " + codes)
+                + (from == null ? "" : ", from " + from)
+                + (to == null ? "" : ", to " + to)
+                + (backfill ? ", backfill" : "");
+    }
+}
@@ -0,0 +1,174 @@
+package covid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/*
+ Read only HTTP API over the TimeSeriesStore, so dashboards don't have to page MeasureReports out of the FHIR server.
+
+   GET /series                                              measures held
+   GET /series/locations?measure=PHE_COVID                  locations with data for the measure
+   GET /series/data?measure=PHE_COVID&location=E06000001&from=2020-04-01&to=2020-04-30&format=json|csv
+
+ from and to are optional and inclusive. JSON is columnar: dates, codes and one row of values per date.
+ Enabled with query.port, unauthenticated so bound to query.address (loopback unless configured otherwise).
+ Mostly useful with service.enabled as it also keeps a one shot run alive once it has finished.
+ */
+public class SeriesQueryServer {
+
+    private static final Logger log = LoggerFactory.getLogger(SeriesQueryServer.class);
+
+    private final TimeSeriesStore store;
+
+    private final String address;
+
+    private final int port;
+
+    private HttpServer server;
+
+    public SeriesQueryServer(TimeSeriesStore store, String address, int port) {
+        this.store = store;
+        this.address = address;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/series", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        server.start();
+        log.info("Series query API on {}:{}", address, port);
+    }
+
+    public void stop() {
+        if (server != null) server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                error(exchange, 405, "GET required");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = getParams(exchange.getRequestURI().getRawQuery());
+            switch (path) {
+                case "/series":
+                case "/series/":
+                    respond(exchange, 200, "application/json", new JSONArray(store.getMeasures()).toString());
+                    break;
+                case "/series/locations":
+                    if (params.get("measure") == null) {
+                        error(exchange, 400, "measure is required");
+                        break;
+                    }
+                    respond(exchange, 200, "application/json", new JSONArray(store.getLocations(params.get("measure"))).toString());
+                    break;
+                case "/series/data":
+                    handleData(exchange, params);
+                    break;
+                default:
+                    error(exchange, 404, "Unknown path " + path);
+            }
+        } catch (Exception ex) {
+            log.error("Series query failed", ex);
+            error(exchange, 500, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    private void error(HttpExchange exchange, int status, String message) throws IOException {
+        respond(exchange, status, "application/json", new JSONObject().put("error", message).toString());
+    }
+
+    private void handleData(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String measure = params.get("measure");
+        String location = params.get("location");
+        if (measure == null || location == null) {
+            error(exchange, 400, "measure and location are required");
+            return;
+        }
+        TimeSeriesStore.Snapshot series = store.get(measure, location);
+        if (series == null) {
+            error(exchange, 404, "No series for " + measure + " " + location);
+            return;
+        }
+        int from;
+        int to;
+        try {
+            from = series.from(params.containsKey("from") ? LocalDate.parse(params.get("from")) : null);
+            to = series.to(params.containsKey("to") ? LocalDate.parse(params.get("to")) : null);
+        } catch (DateTimeParseException ex) {
+            error(exchange, 400, "Dates must be yyyy-MM-dd");
+            return;
+        }
+
+        if ("csv".equals(params.get("format"))) {
+            StringBuilder sb = new StringBuilder("date");
+            for (String code : series.codes) sb.append(',').append(code);
+            sb.append('\n');
+            for (int i = from; i < to; i++) {
+                sb.append(LocalDate.ofEpochDay(series.days[i]));
+                for (int f = 0; f < series.codes.length; f++) {
+                    sb.append(',');
+                    if (!Double.isNaN(series.values[i][f])) sb.append(series.values[i][f]);
+                }
+                sb.append('\n');
+            }
+            respond(exchange, 200, "text/csv", sb.toString());
+        } else {
+            JSONObject json = new JSONObject();
+            json.put("measure", measure);
+            json.put("location", location);
+            json.put("codes", new JSONArray(series.codes));
+            JSONArray dates = new JSONArray();
+            JSONArray values = new JSONArray();
+            for (int i = from; i < to; i++) {
+                dates.put(LocalDate.ofEpochDay(series.days[i]).toString());
+                JSONArray row = new JSONArray();
+                for (int f = 0; f < series.codes.length; f++) {
+                    row.put(Double.isNaN(series.values[i][f]) ? JSONObject.NULL : series.values[i][f]);
+                }
+                values.put(row);
+            }
+            json.put("dates", dates);
+            json.put("values", values);
+            respond(exchange, 200, "application/json", json.toString());
+        }
+    }
+
+    private Map<String, String> getParams(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            if (idx > 0) {
+                params.put(URLDecoder.decode(param.substring(0, idx), "UTF-8"), URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+}
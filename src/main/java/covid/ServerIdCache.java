@@ -0,0 +1,174 @@
+package covid;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import org.apache.commons.io.Charsets;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+ Local cache of identifier -> server id for Measure and Location resources, kept between runs. The file holds the
+ ids of every server used, rows are per server (base URL) and only the current server's are loaded.
+
+ Each entry also holds a hash of the resource content as it was last sent, so an unchanged resource can take its
+ id from the cache instead of being upserted again. Cached ids are checked against the server once at startup
+ with _id searches returning only ids, anything the server no longer has is dropped.
+ */
+public class ServerIdCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerIdCache.class);
+
+    private static final int VERIFY_CHUNK = 100;
+
+    private class Entry {
+        String id;
+        String hash;
+    }
+
+    private final File file;
+
+    private final String server;
+
+    private final IParser parser;
+
+    private final Map<String, Map<String, Entry>> entries = new HashMap<>();
+
+    // Rows of other servers, written back as they were read
+    private final List<String[]> otherServers = new ArrayList<>();
+
+    private boolean changed = false;
+
+    public ServerIdCache(String fileName, String server, FhirContext ctxFHIR) {
+        this.file = new File(fileName);
+        this.server = server;
+        // Hash content only, the id is what we are caching
+        this.parser = ctxFHIR.newJsonParser().setOmitResourceId(true);
+    }
+
+    public void load() throws IOException {
+        if (!file.exists()) return;
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8), ',', '\"', 1);
+        String[] nextLine;
+        int count = 0;
+        while ((nextLine = reader.readNext()) != null) {
+            if (!nextLine[0].equals(server)) {
+                otherServers.add(nextLine);
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.id = nextLine[3];
+            entry.hash = nextLine[4];
+            getType(nextLine[1]).put(nextLine[2], entry);
+            count++;
+        }
+        reader.close();
+        log.info("Loaded {} cached server ids", count);
+    }
+
+    public void save() throws IOException {
+        if (!changed) return;
+        CSVWriter writer = new CSVWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        String[] header = { "SERVER", "RESOURCE", "IDENTIFIER", "ID", "HASH" };
+        writer.writeNext(header);
+        for (String[] data : otherServers) writer.writeNext(data);
+        for (Map.Entry<String, Map<String, Entry>> type : entries.entrySet()) {
+            for (Map.Entry<String, Entry> entry : type.getValue().entrySet()) {
+                String[] data = { server, type.getKey(), entry.getKey(), entry.getValue().id, entry.getValue().hash };
+                writer.writeNext(data);
+            }
+        }
+        writer.close();
+        changed = false;
+    }
+
+    /*
+     Drops cached ids of the resource type which are no longer on the server.
+     */
+    public void verify(IGenericClient client, String resourceType) {
+        Map<String, Entry> type = getType(resourceType);
+        if (type.isEmpty()) return;
+
+        Set<String> found = new HashSet<>();
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : type.values()) ids.add(entry.id);
+        for (int f = 0; f < ids.size(); f += VERIFY_CHUNK) {
+            List<String> chunk = ids.subList(f, Math.min(f + VERIFY_CHUNK, ids.size()));
+            Bundle bundle = client.search()
+                    .byUrl(resourceType + "?_id=" + String.join(",", chunk) + "&_elements=id&_count=" + VERIFY_CHUNK)
+                    .returnBundle(Bundle.class).execute();
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.hasResource()) found.add(entry.getResource().getIdElement().getIdPart());
+            }
+        }
+        int before = type.size();
+        type.values().removeIf(entry -> !found.contains(entry.id));
+        if (type.size() != before) {
+            changed = true;
+            log.info("{} cached {} ids not found on server", before - type.size(), resourceType);
+        }
+    }
+
+    /*
+     Server id (Type/id) for the identifier, or null if not cached.
+     */
+    public String getId(String resourceType, Identifier identifier) {
+        Entry entry = getType(resourceType).get(getKey(identifier));
+        return entry == null ? null : resourceType + "/" + entry.id;
+    }
+
+    /*
+     Server id (Type/id) if the resource is unchanged since it was cached, otherwise null.
+     */
+    public String getIdIfUnchanged(Resource resource, Identifier identifier) {
+        Entry entry = getType(resource.fhirType()).get(getKey(identifier));
+        if (entry == null || !entry.hash.equals(hash(resource))) return null;
+        return resource.fhirType() + "/" + entry.id;
+    }
+
+    public void put(Resource resource, Identifier identifier) {
+        Entry entry = new Entry();
+        entry.id = resource.getIdElement().getIdPart();
+        entry.hash = hash(resource);
+        getType(resource.fhirType()).put(getKey(identifier), entry);
+        changed = true;
+    }
+
+    public void put(String resourceType, Identifier identifier, String id) {
+        Entry entry = new Entry();
+        entry.id = id;
+        entry.hash = "";
+        getType(resourceType).put(getKey(identifier), entry);
+        changed = true;
+    }
+
+    private Map<String, Entry> getType(String resourceType) {
+        return entries.computeIfAbsent(resourceType, k -> new HashMap<>());
+    }
+
+    private String getKey(Identifier identifier) {
+        return identifier.getSystem() + "|" + identifier.getValue();
+    }
+
+    private String hash(Resource resource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(parser.encodeResourceToString(resource).getBytes(Charsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new InternalError(ex);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package covid;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ In memory copy of the computed series, measure -> location -> day -> value per group code.
+
+ Writes go to a TreeMap per series, reads use a sorted snapshot (days and a row of values per day) which is
+ rebuilt the first time the series is read after a write, so range queries are two binary searches.
+
+ When opened on a directory the store is also persisted, so history is available without recomputing it:
+   dictionary.txt  measure, location and code names, one per line, the line number is the id
+   series.dat      memory mapped log of fixed size records (measure, location, code, epoch day, value) after
+                   a record count header. Only values that changed are appended, the last record for a cell wins.
+ A new name is flushed to the dictionary before the first record using it, records whose names are missing anyway
+ are dropped on open. The log is compacted on open once it holds more than twice as many records as live values.
+ */
+public class TimeSeriesStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    private static final int HEADER = 8;
+
+    private static final int RECORD = 24;
+
+    private static final long CHUNK = 16L * 1024 * 1024;
+
+    public static class Snapshot {
+        public final String[] codes;
+        public final int[] days;
+        public final double[][] values;
+
+        Snapshot(String[] codes, int[] days, double[][] values) {
+            this.codes = codes;
+            this.days = days;
+            this.values = values;
+        }
+
+        public int from(LocalDate date) {
+            if (date == null) return 0;
+            int idx = Arrays.binarySearch(days, (int) date.toEpochDay());
+            return idx >= 0 ? idx : -idx - 1;
+        }
+
+        public int to(LocalDate date) {
+            if (date == null) return days.length;
+            int idx = Arrays.binarySearch(days, (int) date.toEpochDay());
+            return idx >= 0 ? idx + 1 : -idx - 1;
+        }
+    }
+
+    private class Series {
+        final List<String> codes = new ArrayList<>();
+        final TreeMap<Integer, double[]> rows = new TreeMap<>();
+        volatile Snapshot snapshot;
+
+        synchronized boolean put(int day, String code, double value) {
+            int col = codes.indexOf(code);
+            if (col < 0) {
+                codes.add(code);
+                col = codes.size() - 1;
+            }
+            double[] row = rows.get(day);
+            if (row != null && row.length > col && Double.compare(row[col], value) == 0) {
+                return false;
+            }
+            if (row == null || row.length <= col) {
+                double[] grown = new double[codes.size()];
+                Arrays.fill(grown, Double.NaN);
+                if (row != null) System.arraycopy(row, 0, grown, 0, row.length);
+                row = grown;
+                rows.put(day, row);
+            }
+            row[col] = value;
+            snapshot = null;
+            return true;
+        }
+
+        synchronized int size() {
+            int count = 0;
+            for (double[] row : rows.values()) {
+                for (double value : row) if (!Double.isNaN(value)) count++;
+            }
+            return count;
+        }
+
+        Snapshot read() {
+            Snapshot result = snapshot;
+            if (result != null) return result;
+            synchronized (this) {
+                if (snapshot == null) {
+                    int[] days = new int[rows.size()];
+                    double[][] values = new double[rows.size()][];
+                    int i = 0;
+                    for (Map.Entry<Integer, double[]> row : rows.entrySet()) {
+                        days[i] = row.getKey();
+                        values[i] = Arrays.copyOf(row.getValue(), codes.size());
+                        for (int f = row.getValue().length; f < codes.size(); f++) values[i][f] = Double.NaN;
+                        i++;
+                    }
+                    snapshot = new Snapshot(codes.toArray(new String[0]), days, values);
+                }
+                return snapshot;
+            }
+        }
+    }
+
+    private final Map<String, Map<String, Series>> measures = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    private File directory;
+
+    private Writer dictionaryWriter;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private long records = 0;
+
+    public synchronized void open(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File dictionaryFile = new File(directory, "dictionary.txt");
+        if (dictionaryFile.exists()) {
+            BufferedReader reader = Files.newBufferedReader(dictionaryFile.toPath(), StandardCharsets.UTF_8);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                dictionary.put(line, names.size());
+                names.add(line);
+            }
+            reader.close();
+        }
+        dictionaryWriter = Files.newBufferedWriter(dictionaryFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        channel = FileChannel.open(new File(directory, "series.dat").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(channel.size(), CHUNK));
+        records = buffer.getLong(0);
+        long dropped = 0;
+        for (long i = 0; i < records; i++) {
+            int pos = (int) (HEADER + i * RECORD);
+            int measure = buffer.getInt(pos);
+            int location = buffer.getInt(pos + 4);
+            int code = buffer.getInt(pos + 8);
+            if (!known(measure) || !known(location) || !known(code)) {
+                // Name lost from the dictionary in a crash
+                dropped++;
+                continue;
+            }
+            series(names.get(measure), names.get(location)).put(buffer.getInt(pos + 12), names.get(code), buffer.getDouble(pos + 16));
+        }
+        long live = 0;
+        for (Map<String, Series> locations : measures.values()) {
+            for (Series series : locations.values()) live += series.size();
+        }
+        log.info("Loaded {} series values from {} ({} records)", live, directory, records);
+        if (dropped > 0) log.warn("Dropped {} series records with names missing from the dictionary", dropped);
+        // Compacted as well when records were dropped, their ids would otherwise be given to new names
+        if (records > 2 * live || dropped > 0) compact();
+    }
+
+    public synchronized void flush() throws IOException {
+        if (buffer != null) buffer.force();
+        if (dictionaryWriter != null) dictionaryWriter.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        if (dictionaryWriter != null) dictionaryWriter.close();
+        if (channel != null) channel.close();
+        buffer = null;
+        channel = null;
+        dictionaryWriter = null;
+    }
+
+    /*
+     Returns false if the value was already held.
+     */
+    public synchronized boolean put(String measure, String location, LocalDate date, String code, double value) {
+        int day = (int) date.toEpochDay();
+        boolean changed = series(measure, location).put(day, code, value);
+        if (changed && channel != null) {
+            try {
+                append(measure, location, code, day, value);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return changed;
+    }
+
+    /*
+     Returns false if every value in the report was already held.
+     */
+    public boolean record(String measure, MeasureReport report) {
+        String location = report.getSubject().getIdentifier().getValue();
+        LocalDate date = report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        boolean changed = false;
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            if (group.hasMeasureScore() && group.getMeasureScore().hasValue()) {
+                if (put(measure, location, date, group.getCode().getCodingFirstRep().getCode(),
+                        group.getMeasureScore().getValue().doubleValue())) changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private Series series(String measure, String location) {
+        return measures.computeIfAbsent(measure, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(location, k -> new Series());
+    }
+
+    private boolean known(int id) {
+        return id >= 0 && id < names.size();
+    }
+
+    private synchronized void append(String measure, String location, String code, int day, double value) throws IOException {
+        // Names first, so the dictionary holds them before a record refers to them
+        int measureId = id(measure);
+        int locationId = id(location);
+        int codeId = id(code);
+        long pos = HEADER + records * RECORD;
+        if (pos + RECORD > buffer.capacity()) {
+            map(buffer.capacity() + CHUNK);
+        }
+        buffer.putInt((int) pos, measureId);
+        buffer.putInt((int) pos + 4, locationId);
+        buffer.putInt((int) pos + 8, codeId);
+        buffer.putInt((int) pos + 12, day);
+        buffer.putDouble((int) pos + 16, value);
+        records++;
+        buffer.putLong(0, records);
+    }
+
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("Series store is full, " + records + " records");
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private int id(String name) throws IOException {
+        Integer id = dictionary.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            dictionary.put(name, id);
+            dictionaryWriter.write(name);
+            dictionaryWriter.write('\n');
+            dictionaryWriter.flush();
+        }
+        return id;
+    }
+
+    /*
+     Rewrites the log with one record per live value.
+     */
+    private void compact() throws IOException {
+        long before = records;
+        File temp = new File(directory, "series.dat.tmp");
+        Files.deleteIfExists(temp.toPath());
+        FileChannel previous = channel;
+        channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(CHUNK);
+        records = 0;
+        for (Map.Entry<String, Map<String, Series>> measure : measures.entrySet()) {
+            for (Map.Entry<String, Series> location : measure.getValue().entrySet()) {
+                Snapshot snapshot = location.getValue().read();
+                for (int i = 0; i < snapshot.days.length; i++) {
+                    for (int f = 0; f < snapshot.codes.length; f++) {
+                        if (!Double.isNaN(snapshot.values[i][f])) {
+                            append(measure.getKey(), location.getKey(), snapshot.codes[f], snapshot.days[i], snapshot.values[i][f]);
+                        }
+                    }
+                }
+            }
+        }
+        buffer.force();
+        channel.close();
+        previous.close();
+        Files.move(temp.toPath(), new File(directory, "series.dat").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(new File(directory, "series.dat").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(channel.size(), CHUNK));
+        log.info("Compacted series store from {} to {} records", before, records);
+    }
+
+    public Snapshot get(String measure, String location) {
+        Map<String, Series> locations = measures.get(measure);
+        if (locations == null) return null;
+        Series series = locations.get(location);
+        return series == null ? null : series.read();
+    }
+
+    public Set<String> getMeasures() {
+        return new TreeSet<>(measures.keySet());
+    }
+
+    public Set<String> getLocations(String measure) {
+        Map<String, Series> locations = measures.get(measure);
+        return locations == null ? Collections.emptySet() : new TreeSet<>(locations.keySet());
+    }
+}
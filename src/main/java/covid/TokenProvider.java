@@ -0,0 +1,141 @@
+package covid;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ OAuth2 client_credentials token for the FHIR server.
+
+ The token is cached with its expiry and replaced on a background thread refreshMargin seconds before it expires,
+ requests in flight keep using the current token until the new one is swapped in.
+ Registered on the FHIR client as the interceptor that adds the bearer token.
+ */
+public class TokenProvider implements IClientInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenProvider.class);
+
+    // Cognito doesn't always return expires_in, tokens default to an hour
+    private static final long DEFAULT_EXPIRES_IN = 3600;
+
+    private static final long RETRY_DELAY = 30;
+
+    private final HttpClient httpClient;
+
+    private final String tokenUrl;
+
+    private final String basicAuth;
+
+    private final String scope;
+
+    private final long refreshMargin;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "token-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile String token;
+
+    private volatile long expiresAt;
+
+    private ScheduledFuture<?> pending;
+
+    public TokenProvider(HttpClient httpClient, String tokenUrl, String basicAuth, String scope, long refreshMargin) {
+        this.httpClient = httpClient;
+        this.tokenUrl = tokenUrl;
+        this.basicAuth = basicAuth;
+        this.scope = scope;
+        this.refreshMargin = refreshMargin;
+    }
+
+    public String getToken() throws IOException {
+        if (token == null) refresh();
+        return token;
+    }
+
+    /*
+     Called after a 401. Only fetches a new token if nobody has replaced the one the failed request used.
+     */
+    public synchronized void refreshIfCurrent(String failedToken) throws IOException {
+        if (token == null || token.equals(failedToken)) {
+            refresh();
+        }
+    }
+
+    public synchronized void refresh() throws IOException {
+        HttpPost post = new HttpPost(tokenUrl);
+        post.setHeader(HttpHeaders.CONTENT_TYPE, "application/x-www-form-urlencoded");
+        post.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + basicAuth);
+        List<NameValuePair> nvps = new ArrayList<>();
+        nvps.add(new BasicNameValuePair("scope", scope));
+        nvps.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        post.setEntity(new UrlEncodedFormEntity(nvps, StandardCharsets.UTF_8));
+
+        HttpResponse response = httpClient.execute(post);
+        String jsonResponse = EntityUtils.toString(response.getEntity());
+        if (response.getStatusLine().getStatusCode() != 200) {
+            throw new IOException("Token request failed " + response.getStatusLine() + " " + jsonResponse);
+        }
+        JSONObject authObj = new JSONObject(jsonResponse);
+        long expiresIn = authObj.optLong("expires_in", DEFAULT_EXPIRES_IN);
+
+        token = authObj.getString("access_token");
+        expiresAt = System.currentTimeMillis() + expiresIn * 1000;
+        log.debug(token);
+        log.info("Obtained access token, expires in {}s", expiresIn);
+
+        scheduleRefresh(Math.max(expiresIn - refreshMargin, RETRY_DELAY));
+    }
+
+    private synchronized void scheduleRefresh(long delay) {
+        if (pending != null) pending.cancel(false);
+        pending = scheduler.schedule(() -> {
+            try {
+                refresh();
+            } catch (Exception ex) {
+                long remaining = (expiresAt - System.currentTimeMillis()) / 1000;
+                log.warn("Background token refresh failed ({}), token valid for another {}s", ex.getMessage(), remaining);
+                scheduleRefresh(RETRY_DELAY);
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest theRequest) {
+        try {
+            theRequest.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + getToken());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to obtain access token", ex);
+        }
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse theResponse) {
+    }
+}
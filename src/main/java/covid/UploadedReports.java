@@ -0,0 +1,126 @@
+package covid;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ Content of each MeasureReport as the primary server last confirmed it (identifier key -> content hash), for
+ store.skipUnchanged. Kept apart from the TimeSeriesStore, which holds what was computed whether or not it was
+ stored, so a report rejected, quarantined or lost in a crash is sent again by the next run.
+
+ When opened on a directory it is persisted as uploaded.dat, fixed size records (key, hash) appended as responses
+ come in, the last record for a key wins. The file is compacted on open once it holds more than twice as many
+ records as keys.
+ */
+public class UploadedReports {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadedReports.class);
+
+    private static final int RECORD = 16;
+
+    private final Map<Long, Long> hashes = new HashMap<>();
+
+    private File file;
+
+    private DataOutputStream out;
+
+    private long records = 0;
+
+    public synchronized void open(File directory) throws IOException {
+        file = new File(directory, "uploaded.dat");
+        if (file.exists()) {
+            // A record cut short by a crash is ignored
+            long complete = file.length() / RECORD;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            for (long i = 0; i < complete; i++) {
+                hashes.put(in.readLong(), in.readLong());
+            }
+            in.close();
+            records = complete;
+            log.info("Loaded {} uploaded report hashes from {}", hashes.size(), file);
+            if (records > 2 * hashes.size() || file.length() != records * RECORD) compact();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    public synchronized void flush() throws IOException {
+        if (out != null) out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+        out = null;
+    }
+
+    /*
+     True if the primary server confirmed this report with the same content.
+     */
+    public synchronized boolean isUploaded(MeasureReport report) {
+        Long hash = hashes.get(RunIndex.key("MeasureReport", report.getIdentifierFirstRep()));
+        return hash != null && hash == hash(report);
+    }
+
+    /*
+     Records the reports of a bundle the server stored, from the primary's response. Entries are matched by
+     position, those without a 2xx status (failed batch entries) are left out.
+     */
+    public void confirm(Bundle request, Bundle response) throws IOException {
+        for (int f = 0; f < request.getEntry().size() && f < response.getEntry().size(); f++) {
+            if (!(request.getEntry().get(f).getResource() instanceof MeasureReport)) continue;
+            String status = response.getEntry().get(f).getResponse().getStatus();
+            if (status == null || !status.startsWith("2")) continue;
+            MeasureReport report = (MeasureReport) request.getEntry().get(f).getResource();
+            put(RunIndex.key("MeasureReport", report.getIdentifierFirstRep()), hash(report));
+        }
+    }
+
+    private synchronized void put(long key, long hash) throws IOException {
+        Long previous = hashes.put(key, hash);
+        if (out == null || (previous != null && previous == hash)) return;
+        out.writeLong(key);
+        out.writeLong(hash);
+        records++;
+    }
+
+    private void compact() throws IOException {
+        long before = records;
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        for (Map.Entry<Long, Long> entry : hashes.entrySet()) {
+            compacted.writeLong(entry.getKey());
+            compacted.writeLong(entry.getValue());
+        }
+        compacted.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        records = hashes.size();
+        log.info("Compacted uploaded report hashes from {} to {} records", before, records);
+    }
+
+    /*
+     Stable between runs (String hashes only), unlike the run index's which uses ids interned per run.
+     */
+    static long hash(MeasureReport report) {
+        long hash = RunIndex.mix(0, report.hasPeriod() && report.getPeriod().hasStart() ? report.getPeriod().getStart().getTime() : 0);
+        hash = RunIndex.mix(hash, report.getSubject().getIdentifier().hasValue() ? report.getSubject().getIdentifier().getValue().hashCode() : 0);
+        hash = RunIndex.mix(hash, report.getMeasure() == null ? 0 : report.getMeasure().hashCode());
+        hash = RunIndex.mix(hash, report.getStatus() == null ? 0 : report.getStatus().ordinal());
+        long groups = 0;
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            // Order of groups doesn't matter, so they are summed
+            String code = group.getCode().getCodingFirstRep().getSystem() + "|" + group.getCode().getCodingFirstRep().getCode();
+            long value = RunIndex.mix(code.hashCode(), group.hasPopulation() ? group.getPopulationFirstRep().getCount() : -1);
+            value = RunIndex.mix(value, group.hasMeasureScore() && group.getMeasureScore().hasValue()
+                    ? Double.doubleToLongBits(group.getMeasureScore().getValue().doubleValue()) : 0);
+            groups += value;
+        }
+        return RunIndex.mix(hash, groups);
+    }
+}
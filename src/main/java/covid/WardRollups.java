@@ -0,0 +1,141 @@
+package covid;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/*
+ Ward (WD) figures rolled up to their upper tier local authority, per day, from the series in the TimeSeriesStore.
+
+ touch() is called with each ward report whose values changed and marks the UTLA and day, build() sums that day's
+ values of every ward in the UTLA (the UTLA each ward carries, see LocationRegistry.getUTLA) per group code. Ward
+ figures are counts, so they are summed. The reports have their own identifier system per measure, so they sit
+ next to the UTLA's own reports rather than replacing them, and the population count of each group is the number
+ of wards with a value.
+ */
+public class WardRollups {
+
+    private static final String SYSTEM = "https://fhir.mayfield-is.co.uk/Measure/";
+
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    public interface IReportHandler {
+        void accept(MeasureReport report) throws InterruptedException;
+    }
+
+    private final TimeSeriesStore store;
+
+    private final LocationRegistry locations;
+
+    // measure -> UTLA -> days (epoch day) changed since the last build
+    private Map<String, Map<String, TreeSet<Integer>>> touched = new HashMap<>();
+
+    // code -> coding (system and display) as seen in the ward reports
+    private final Map<String, Coding> codings = new HashMap<>();
+
+    public WardRollups(TimeSeriesStore store, LocationRegistry locations) {
+        this.store = store;
+        this.locations = locations;
+    }
+
+    /*
+     Marks the report's day for its UTLA if the subject is a ward which has one.
+     */
+    public synchronized void touch(String measure, MeasureReport report) {
+        int idx = locations.indexOf(report.getSubject().getIdentifier().getValue());
+        if (idx == LocationRegistry.NONE || locations.getUTLA(idx) == null) return;
+        LocalDate date = report.getPeriod().getStart().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+        touched.computeIfAbsent(measure, k -> new HashMap<>())
+                .computeIfAbsent(locations.getUTLA(idx), k -> new TreeSet<>())
+                .add((int) date.toEpochDay());
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            Coding coding = group.getCode().getCodingFirstRep();
+            if (!codings.containsKey(coding.getCode())) codings.put(coding.getCode(), coding.copy());
+        }
+    }
+
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Map<String, TreeSet<Integer>> utlas : touched.values()) {
+            for (Set<Integer> days : utlas.values()) pending += days.size();
+        }
+        return pending;
+    }
+
+    public void build(Map<String, String> measureIds, IReportHandler handler) throws InterruptedException {
+        Map<String, Map<String, TreeSet<Integer>>> days;
+        synchronized (this) {
+            days = touched;
+            touched = new HashMap<>();
+        }
+        for (Map.Entry<String, Map<String, TreeSet<Integer>>> measure : days.entrySet()) {
+            // UTLA -> its wards with a series for the measure
+            Map<String, List<TimeSeriesStore.Snapshot>> wards = new HashMap<>();
+            for (String location : store.getLocations(measure.getKey())) {
+                int idx = locations.indexOf(location);
+                if (idx == LocationRegistry.NONE || locations.getUTLA(idx) == null) continue;
+                if (!measure.getValue().containsKey(locations.getUTLA(idx))) continue;
+                wards.computeIfAbsent(locations.getUTLA(idx), k -> new ArrayList<>()).add(store.get(measure.getKey(), location));
+            }
+            for (Map.Entry<String, TreeSet<Integer>> utla : measure.getValue().entrySet()) {
+                List<TimeSeriesStore.Snapshot> snapshots = wards.getOrDefault(utla.getKey(), Collections.emptyList());
+                for (int day : utla.getValue()) {
+                    MeasureReport report = rollup(measure.getKey(), measureIds.get(measure.getKey()), utla.getKey(),
+                            LocalDate.ofEpochDay(day), snapshots);
+                    if (report.hasGroup()) handler.accept(report);
+                }
+            }
+        }
+    }
+
+    private MeasureReport rollup(String measure, String measureId, String utla, LocalDate day, List<TimeSeriesStore.Snapshot> snapshots) {
+        // code -> sum and number of wards with a value
+        Map<String, double[]> sums = new TreeMap<>();
+        for (TimeSeriesStore.Snapshot snapshot : snapshots) {
+            int row = Arrays.binarySearch(snapshot.days, (int) day.toEpochDay());
+            if (row < 0) continue;
+            for (int f = 0; f < snapshot.codes.length; f++) {
+                double value = snapshot.values[row][f];
+                if (Double.isNaN(value)) continue;
+                double[] sum = sums.computeIfAbsent(snapshot.codes[f], k -> new double[2]);
+                sum[0] += value;
+                sum[1]++;
+            }
+        }
+
+        MeasureReport report = new MeasureReport();
+        report.addIdentifier()
+                .setSystem(SYSTEM + measure + "/wards")
+                .setValue(utla + "-" + STAMP.format(day));
+        Date start = Date.from(day.atStartOfDay(ZoneId.systemDefault()).toInstant());
+        report.setDate(start);
+        report.setPeriod(new Period().setStart(start));
+        report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+        report.setType(MeasureReport.MeasureReportType.SUMMARY);
+        report.setMeasure(measureId);
+
+        Identifier identifier = new Identifier().setSystem(locations.getOnsSystem()).setValue(utla);
+        report.getSubject().setIdentifier(identifier);
+        report.getReporter().setIdentifier(identifier.copy());
+        int idx = locations.indexOf(utla);
+        if (idx != LocationRegistry.NONE) {
+            report.getSubject().setReference(locations.getId(idx)).setDisplay(locations.getName(idx));
+            report.getReporter().setReference(locations.getId(idx)).setDisplay(locations.getName(idx));
+        }
+
+        for (Map.Entry<String, double[]> sum : sums.entrySet()) {
+            Coding coding;
+            synchronized (this) {
+                coding = codings.get(sum.getKey());
+            }
+            MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+            group.setCode(new CodeableConcept().addCoding(coding == null ? new Coding().setCode(sum.getKey()) : coding.copy()));
+            group.addPopulation().setCount((int) sum.getValue()[1]);
+            group.setMeasureScore(new Quantity().setValue(LocationRegistry.toDecimal(sum.getValue()[0])));
+        }
+        return report;
+    }
+}
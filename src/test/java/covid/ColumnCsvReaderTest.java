@@ -0,0 +1,50 @@
+package covid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnCsvReaderTest {
+
+    private static ColumnCsvReader reader(String csv, int... columns) {
+        byte[] data = csv.getBytes(StandardCharsets.UTF_8);
+        return new ColumnCsvReader(data, 0, data.length, columns);
+    }
+
+    @Test
+    public void blankLinesAreSkipped() {
+        ColumnCsvReader reader = reader("code,value\r\n\r\nE06000001,12\n\nE06000002,7\r\n\r\n", 0, 1);
+        reader.skipLine();
+
+        assertTrue(reader.next());
+        assertEquals("E06000001", reader.getCode(0));
+        assertEquals(12, reader.getInt(1));
+
+        assertTrue(reader.next());
+        assertEquals(2, reader.getColumnCount());
+        assertEquals("E06000002", reader.getCode(0));
+        assertEquals(7, reader.getInt(1));
+
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void emptyColumnsAreKept() {
+        ColumnCsvReader reader = reader(",\n\"a,\"\"b\"\"\",\n", 0, 1);
+
+        assertTrue(reader.next());
+        assertEquals(2, reader.getColumnCount());
+        assertTrue(reader.isEmpty(0));
+        assertTrue(reader.isEmpty(1));
+
+        assertTrue(reader.next());
+        assertEquals("a,\"b\"", reader.getString(0));
+        assertTrue(reader.isEmpty(1));
+
+        assertFalse(reader.next());
+    }
+}
@@ -0,0 +1,72 @@
+package covid;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Period;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class DailyRankingTest {
+
+    private static final String ONS = "https://fhir.gov.uk/Identifier/ONS";
+
+    private static final LocalDate DAY = LocalDate.of(2020, 4, 1);
+
+    @Test
+    public void unitaryAuthoritiesAndCountiesShareOneRanking() throws Exception {
+        LocationRegistry locations = new LocationRegistry(ONS);
+        locations.put("E06000001", "Hartlepool", "UA");
+        locations.put("E06000001", "Hartlepool", "NHSUA");
+        locations.put("E10000002", "Buckinghamshire", "CTY");
+        locations.put("E08000001", "Bolton", "MD");
+        locations.put("E12000001", "North East", "RGN");
+
+        TimeSeriesStore store = new TimeSeriesStore();
+        store.put("PHE_COVID", "E06000001", DAY, "CASES", 30);
+        store.put("PHE_COVID", "E10000002", DAY, "CASES", 10);
+        store.put("PHE_COVID", "E08000001", DAY, "CASES", 20);
+        store.put("PHE_COVID", "E12000001", DAY, "CASES", 5);
+
+        DailyRanking ranking = new DailyRanking(store, locations, "PHE_COVID:CASES", 1000, 1);
+        ranking.touch("PHE_COVID", report("E06000001"));
+
+        Map<String, MeasureReport> reports = new HashMap<>();
+        ranking.build(Collections.singletonMap("PHE_COVID", "Measure/1"),
+                report -> reports.put(report.getSubject().getIdentifier().getValue(), report));
+
+        assertEquals(1, rank(reports.get("E06000001")));
+        assertEquals(2, rank(reports.get("E08000001")));
+        assertEquals(3, rank(reports.get("E10000002")));
+        assertEquals(3, ranked(reports.get("E10000002")));
+        // The region is ranked among regions only
+        assertEquals(1, rank(reports.get("E12000001")));
+        assertEquals(1, ranked(reports.get("E12000001")));
+    }
+
+    private static MeasureReport report(String location) {
+        MeasureReport report = new MeasureReport();
+        report.addIdentifier().setSystem("https://fhir.mayfield-is.co.uk/Measure/PHE").setValue(location);
+        report.setPeriod(new Period().setStart(Date.from(DAY.atStartOfDay(ZoneId.systemDefault()).toInstant())));
+        report.getSubject().getIdentifier().setSystem(ONS).setValue(location);
+        return report;
+    }
+
+    private static MeasureReport.MeasureReportGroupComponent group(MeasureReport report, String code) {
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            if (code.equals(group.getCode().getCodingFirstRep().getCode())) return group;
+        }
+        throw new AssertionError("No " + code + " group");
+    }
+
+    private static int rank(MeasureReport report) {
+        return group(report, "CASES-rank").getMeasureScore().getValue().intValue();
+    }
+
+    private static int ranked(MeasureReport report) {
+        return group(report, "CASES-rank").getPopulationFirstRep().getCount();
+    }
+}